@@ -9,6 +9,16 @@ import webapi.*;
  */
 public class CJ {
 
+    // The color string cache size (must be power of two)
+    private static final int COLOR_CACHE_SIZE = 1024;
+
+    // The color string cache keys (ARGB ints) and values (direct mapped, so bounded)
+    private static int[] _colorKeys = new int[COLOR_CACHE_SIZE];
+    private static String[] _colorStrings = new String[COLOR_CACHE_SIZE];
+
+    // The number of color string cache hits and misses
+    private static int _colorHitCount, _colorMissCount;
+
     /**
      * Returns JavaScript color for snap color.
      */
@@ -16,11 +26,61 @@ public class CJ {
     {
         if (aColor == null) return null;
         int r = aColor.getRedInt(), g = aColor.getGreenInt(), b = aColor.getBlueInt(), a = aColor.getAlphaInt();
+
+        // Get ARGB key and cache index (just return cached string if found)
+        int argb = a << 24 | r << 16 | g << 8 | b;
+        int index = (argb ^ argb >>> 10 ^ argb >>> 20) & (COLOR_CACHE_SIZE - 1);
+        String colorStr = _colorStrings[index];
+        if (colorStr != null && _colorKeys[index] == argb) {
+            _colorHitCount++;
+            return colorStr;
+        }
+
+        // Create color string and add to cache (replacing any colliding entry)
+        colorStr = createColorJS(r, g, b, a);
+        _colorKeys[index] = argb;
+        _colorStrings[index] = colorStr;
+        _colorMissCount++;
+        return colorStr;
+    }
+
+    /**
+     * Creates a JavaScript color string for given color components.
+     */
+    private static String createColorJS(int r, int g, int b, int a)
+    {
         StringBuilder sb = new StringBuilder(a == 255 ? "rgb(" : "rgba(");
         sb.append(r).append(',').append(g).append(',').append(b);
         if (a == 255) sb.append(')');
         else sb.append(',').append(a / 255d).append(')');
-        return sb.toString();
+        return sb.toString().intern();
+    }
+
+    /**
+     * Returns the number of color string cache hits.
+     */
+    public static int getColorCacheHitCount()  { return _colorHitCount; }
+
+    /**
+     * Returns the number of color string cache misses.
+     */
+    public static int getColorCacheMissCount()  { return _colorMissCount; }
+
+    /**
+     * Returns the color string cache hit rate (0 - 1).
+     */
+    public static double getColorCacheHitRate()
+    {
+        int lookupCount = _colorHitCount + _colorMissCount;
+        return lookupCount > 0 ? _colorHitCount / (double) lookupCount : 0;
+    }
+
+    /**
+     * Resets the color string cache hit/miss counts.
+     */
+    public static void resetColorCacheCounts()
+    {
+        _colorHitCount = _colorMissCount = 0;
     }
 
     /**
@@ -65,12 +125,19 @@ public class CJ {
      */
     public static String getFontJS(Font aFont)
     {
-        String str = "";
-        if (aFont.isBold()) str += "Bold ";
-        if (aFont.isItalic()) str += "Italic ";
-        str += ((int) aFont.getSize()) + "px ";
-        str += aFont.getFamily();
-        return str;
+        // Handle CJFontFile: Get cached name for size
+        int fontSize = (int) aFont.getSize();
+        FontFile fontFile = aFont.getFontFile();
+        if (fontFile instanceof CJFontFile)
+            return ((CJFontFile) fontFile).getJSName(fontSize);
+
+        // Handle other font files
+        StringBuilder sb = new StringBuilder();
+        if (aFont.isBold()) sb.append("Bold ");
+        if (aFont.isItalic()) sb.append("Italic ");
+        sb.append(fontSize).append("px ");
+        sb.append(aFont.getFamily());
+        return sb.toString();
     }
 
     /**
@@ -0,0 +1,752 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import snap.gfx3d.VertexArray;
+import webapi.*;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * This class caches WebGLBuffers for VertexArrays so that static geometry is only uploaded once.
+ * VertexArrays are weakly keyed (and buffers deleted once the VertexArray is collected). Buffers are re-uploaded only
+ * when a content hash of the VertexArray arrays changes (so arrays modified in place are caught) and are evicted
+ * least-recently-used when resident bytes exceed the byte budget. Groups of compatible VertexArrays can also be merged into
+ * combined buffers, with the currently visible members drawn as sub-ranges. With WebGL2, 32 bit indexes are used for large VertexArrays
+ * and a vertex array object is cached with each set of buffers. With WebGL1, large indexed VertexArrays are expanded
+ * to non-indexed buffers (since 16 bit indexes can only address 65,536 vertices).
+ */
+public class CJBufferCache {
+
+    // The WebGLRenderingContext
+    private WebGLRenderingContext _gl;
+
+    // The WebGL2RenderingContext (null if context is WebGL1)
+    private WebGL2RenderingContext _gl2;
+
+    // A map of VertexArray to buffers
+    private Map<VertexArray, VertexBuffers> _buffers = new WeakHashMap<>();
+
+    // A map of merge group key to merged buffers
+    private Map<Object, MergedVertexBuffers> _mergedBuffers = new HashMap<>();
+
+    // The list of all buffers (to delete WebGLBuffers for collected or evicted VertexArrays)
+    private List<VertexBuffers> _entries = new ArrayList<>();
+
+    // The max number of bytes to keep resident
+    private long _maxBytes = DEFAULT_MAX_BYTES;
+
+    // The number of bytes currently resident
+    private long _residentBytes;
+
+    // The number of VertexArray uploads and cache hits
+    private int _uploadCount, _hitCount;
+
+    // The use counter (for LRU)
+    private long _useCount;
+
+    // The currently bound vertex array object (WebGL2)
+    private WebGLVertexArrayObject _boundVAO;
+
+    // The default max bytes (64 MB)
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    // The number of group draws a merged member is kept for after it was last drawn (when group is rebuilt)
+    private static final int MAX_MERGE_MEMBER_AGE = 600;
+
+    /**
+     * Constructor.
+     */
+    public CJBufferCache(WebGLRenderingContext aGL)
+    {
+        _gl = aGL;
+        _gl2 = aGL instanceof WebGL2RenderingContext ? (WebGL2RenderingContext) aGL : null;
+    }
+
+    /**
+     * Returns the max number of bytes to keep resident.
+     */
+    public long getMaxBytes()  { return _maxBytes; }
+
+    /**
+     * Sets the max number of bytes to keep resident.
+     */
+    public void setMaxBytes(long aValue)
+    {
+        _maxBytes = aValue;
+        evictToBudget(null);
+    }
+
+    /**
+     * Returns the number of bytes currently resident.
+     */
+    public long getResidentBytes()  { return _residentBytes; }
+
+    /**
+     * Returns the number of VertexArray uploads.
+     */
+    public int getUploadCount()  { return _uploadCount; }
+
+    /**
+     * Returns the number of cache hits.
+     */
+    public int getHitCount()  { return _hitCount; }
+
+    /**
+     * Resets the upload and hit counters.
+     */
+    public void resetCounters()  { _uploadCount = _hitCount = 0; }
+
+    /**
+     * Returns the buffers for given VertexArray, uploading only if missing or changed.
+     */
+    public VertexBuffers getBuffers(VertexArray aVertexArray)
+    {
+        // If buffers exist and are current, just return
+        VertexBuffers buffers = _buffers.get(aVertexArray);
+        if (buffers != null && buffers.isCurrent(aVertexArray)) {
+            buffers._lastUse = ++_useCount;
+            _hitCount++;
+            return buffers;
+        }
+
+        // If stale buffers, delete
+        if (buffers != null)
+            removeEntry(buffers);
+
+        // Delete buffers for collected VertexArrays
+        purgeCollected();
+
+        // Create new buffers and upload (unbind VAO first, so index buffer binding doesn't replace bound VAO's)
+        unbindVertexArray();
+        buffers = new VertexBuffers(aVertexArray);
+        _buffers.put(aVertexArray, buffers);
+        addEntry(buffers);
+
+        // Evict others if over budget and return
+        evictToBudget(buffers);
+        return buffers;
+    }
+
+    /**
+     * Returns combined buffers for given merge group key that hold (at least) the given non-indexed, untextured
+     * VertexArrays, with draw ranges set to just those VertexArrays. Groups keep members that were recently drawn,
+     * so changes in the visible set (culling, visibility) just draw different ranges instead of re-uploading.
+     */
+    public MergedVertexBuffers getMergedBuffers(Object aGroupKey, List<VertexArray> theVertexArrays)
+    {
+        // If buffers exist with all given VertexArrays and are current, just set draw ranges and return
+        MergedVertexBuffers buffers = _mergedBuffers.get(aGroupKey);
+        if (buffers != null && buffers.containsAll(theVertexArrays) && buffers.isCurrent(null)) {
+            buffers.setDrawRanges(theVertexArrays);
+            buffers._lastUse = ++_useCount;
+            _hitCount++;
+            return buffers;
+        }
+
+        // Get members: Given VertexArrays plus old members drawn recently (copy list, since caller may reuse it)
+        List<VertexArray> vertexArrays = new ArrayList<>(theVertexArrays);
+        if (buffers != null) {
+            buffers.addRecentMembers(vertexArrays);
+            removeEntry(buffers);
+        }
+
+        // Remove any individual buffers for members, so geometry isn't resident twice
+        for (VertexArray vertexArray : vertexArrays) {
+            VertexBuffers arrayBuffers = _buffers.get(vertexArray);
+            if (arrayBuffers != null)
+                removeEntry(arrayBuffers);
+        }
+
+        // Delete buffers for collected VertexArrays
+        purgeCollected();
+
+        // Create new merged buffers and upload (unbind VAO first, so buffer bindings don't change bound VAO)
+        unbindVertexArray();
+        buffers = new MergedVertexBuffers(aGroupKey, vertexArrays);
+        _mergedBuffers.put(aGroupKey, buffers);
+        addEntry(buffers);
+
+        // Evict others if over budget, set draw ranges and return
+        evictToBudget(buffers);
+        buffers.setDrawRanges(theVertexArrays);
+        return buffers;
+    }
+
+    /**
+     * Adds given new buffers to entries.
+     */
+    private void addEntry(VertexBuffers theBuffers)
+    {
+        theBuffers._lastUse = ++_useCount;
+        _entries.add(theBuffers);
+        _residentBytes += theBuffers._byteCount;
+        _uploadCount++;
+    }
+
+    /**
+     * Deletes buffers for VertexArrays that have been garbage collected (merged buffers once all members are).
+     */
+    private void purgeCollected()
+    {
+        for (int i = _entries.size() - 1; i >= 0; i--) {
+            VertexBuffers buffers = _entries.get(i);
+            if (buffers.isCollected())
+                removeEntry(buffers);
+        }
+    }
+
+    /**
+     * Removes least recently used buffers until resident bytes are within budget.
+     */
+    private void evictToBudget(VertexBuffers theBuffersToKeep)
+    {
+        while (_residentBytes > _maxBytes && _entries.size() > 1) {
+
+            // Get least recently used buffers
+            VertexBuffers lruBuffers = null;
+            for (VertexBuffers buffers : _entries)
+                if (buffers != theBuffersToKeep && (lruBuffers == null || buffers._lastUse < lruBuffers._lastUse))
+                    lruBuffers = buffers;
+
+            // Remove
+            if (lruBuffers == null) break;
+            removeEntry(lruBuffers);
+        }
+    }
+
+    /**
+     * Removes given buffers from maps and entries and deletes WebGLBuffers.
+     */
+    private void removeEntry(VertexBuffers theBuffers)
+    {
+        if (theBuffers instanceof MergedVertexBuffers)
+            _mergedBuffers.remove(((MergedVertexBuffers) theBuffers)._groupKey);
+        else {
+            VertexArray vertexArray = theBuffers._vertexArrayRef.get();
+            if (vertexArray != null)
+                _buffers.remove(vertexArray);
+        }
+        _entries.remove(theBuffers);
+        _residentBytes -= theBuffers._byteCount;
+        theBuffers.delete();
+    }
+
+    /**
+     * Deletes all buffers.
+     */
+    public void clear()
+    {
+        for (VertexBuffers buffers : _entries)
+            buffers.delete();
+        _entries.clear();
+        _buffers.clear();
+        _mergedBuffers.clear();
+        _residentBytes = 0;
+    }
+
+    /**
+     * A class to hold the WebGLBuffers for a VertexArray.
+     */
+    public class VertexBuffers {
+
+        // The VertexArray (null for merged buffers)
+        private WeakReference<VertexArray> _vertexArrayRef;
+
+        // The content hashes of the source arrays when uploaded
+        private long _pointHash, _colorHash, _texCoordHash, _indexHash;
+
+        // The number of indexes uploaded
+        private int _indexCount;
+
+        // The WebGLBuffers
+        protected WebGLBuffer _pointBuffer, _colorBuffer, _texCoordBuffer, _indexBuffer;
+
+        // The number of vertices uploaded
+        protected int _vertexCount;
+
+        // The index type (UNSIGNED_SHORT or UNSIGNED_INT)
+        private int _indexType;
+
+        // The vertex array object (WebGL2 only, created on first draw)
+        protected WebGLVertexArrayObject _vao;
+
+        // The number of bytes uploaded
+        protected long _byteCount;
+
+        // The use counter value of last use
+        private long _lastUse;
+
+        /**
+         * Constructor for subclasses.
+         */
+        protected VertexBuffers()  { }
+
+        /**
+         * Constructor: Creates and uploads buffers for given VertexArray.
+         */
+        private VertexBuffers(VertexArray aVertexArray)
+        {
+            // Get source arrays and content hashes
+            _vertexArrayRef = new WeakReference<>(aVertexArray);
+            float[] pointArray = aVertexArray.getPointArray();
+            float[] colorArray = getColorArray(aVertexArray);
+            float[] texCoordArray = getTexCoordArray(aVertexArray);
+            int[] indexArray = getIndexArray(aVertexArray);
+            _pointHash = getContentHash(pointArray);
+            _colorHash = getContentHash(colorArray);
+            _texCoordHash = getContentHash(texCoordArray);
+            _indexHash = getContentHash(indexArray);
+            _indexCount = indexArray != null ? indexArray.length : 0;
+            _vertexCount = pointArray.length / 3;
+
+            // If indexes can't be addressed with 16 bits and no WebGL2, expand to non-indexed arrays
+            boolean isIndex32 = indexArray != null && _vertexCount > 65536;
+            if (isIndex32 && _gl2 == null) {
+                pointArray = expandIndexedFloats(pointArray, 3, indexArray);
+                colorArray = colorArray != null ? expandIndexedFloats(colorArray, 3, indexArray) : null;
+                texCoordArray = texCoordArray != null ? expandIndexedFloats(texCoordArray, 2, indexArray) : null;
+                indexArray = null;
+                _vertexCount = pointArray.length / 3;
+            }
+
+            // Create/buffer pointArray
+            _pointBuffer = createBuffer(_gl.ARRAY_BUFFER, new Float32Array(pointArray));
+            _byteCount = pointArray.length * 4L;
+
+            // If color array present, create/buffer colorArray
+            if (colorArray != null) {
+                _colorBuffer = createBuffer(_gl.ARRAY_BUFFER, new Float32Array(colorArray));
+                _byteCount += colorArray.length * 4L;
+            }
+
+            // If texCoords present, create/buffer texCoordArray
+            if (texCoordArray != null) {
+                _texCoordBuffer = createBuffer(_gl.ARRAY_BUFFER, new Float32Array(texCoordArray));
+                _byteCount += texCoordArray.length * 4L;
+            }
+
+            // If index array present, create/buffer indexArray (as 32 bit if needed)
+            if (indexArray != null) {
+                if (isIndex32) {
+                    _indexBuffer = createBuffer(_gl.ELEMENT_ARRAY_BUFFER, new Uint32Array(indexArray));
+                    _indexType = _gl.UNSIGNED_INT;
+                    _byteCount += indexArray.length * 4L;
+                }
+                else {
+                    _indexBuffer = createBuffer(_gl.ELEMENT_ARRAY_BUFFER, new Uint16Array(indexArray));
+                    _indexType = _gl.UNSIGNED_SHORT;
+                    _byteCount += indexArray.length * 2L;
+                }
+            }
+        }
+
+        /**
+         * Returns the point buffer.
+         */
+        public WebGLBuffer getPointBuffer()  { return _pointBuffer; }
+
+        /**
+         * Returns the color buffer (null if VertexArray has no color array).
+         */
+        public WebGLBuffer getColorBuffer()  { return _colorBuffer; }
+
+        /**
+         * Returns the texCoord buffer (null if VertexArray has no texCoord array).
+         */
+        public WebGLBuffer getTexCoordBuffer()  { return _texCoordBuffer; }
+
+        /**
+         * Returns the index buffer (null if VertexArray has no index array).
+         */
+        public WebGLBuffer getIndexBuffer()  { return _indexBuffer; }
+
+        /**
+         * Returns the number of vertices uploaded.
+         */
+        public int getVertexCount()  { return _vertexCount; }
+
+        /**
+         * Returns the number of indexes uploaded.
+         */
+        public int getIndexCount()  { return _indexBuffer != null ? _indexCount : 0; }
+
+        /**
+         * Returns the index type (UNSIGNED_SHORT or UNSIGNED_INT).
+         */
+        public int getIndexType()  { return _indexType; }
+
+        /**
+         * Returns the vertex array object (WebGL2 only, null until first draw).
+         */
+        public WebGLVertexArrayObject getVAO()  { return _vao; }
+
+        /**
+         * Sets the vertex array object.
+         */
+        public void setVAO(WebGLVertexArrayObject aVAO)  { _vao = aVAO; }
+
+        /**
+         * Returns whether buffers still match the contents of given VertexArray (by content hash, since arrays may be
+         * modified in place).
+         */
+        protected boolean isCurrent(Object aKey)
+        {
+            VertexArray aVertexArray = (VertexArray) aKey;
+            return getContentHash(aVertexArray.getPointArray()) == _pointHash &&
+                getContentHash(getColorArray(aVertexArray)) == _colorHash &&
+                getContentHash(getTexCoordArray(aVertexArray)) == _texCoordHash &&
+                getContentHash(getIndexArray(aVertexArray)) == _indexHash;
+        }
+
+        /**
+         * Returns whether source VertexArray has been garbage collected.
+         */
+        protected boolean isCollected()  { return _vertexArrayRef.get() == null; }
+
+        /**
+         * Deletes buffers.
+         */
+        protected void delete()
+        {
+            _gl.deleteBuffer(_pointBuffer);
+            if (_colorBuffer != null)
+                _gl.deleteBuffer(_colorBuffer);
+            if (_texCoordBuffer != null)
+                _gl.deleteBuffer(_texCoordBuffer);
+            if (_indexBuffer != null)
+                _gl.deleteBuffer(_indexBuffer);
+            if (_vao != null) {
+                if (_vao == _boundVAO)
+                    _boundVAO = null;
+                _gl2.deleteVertexArray(_vao);
+            }
+        }
+    }
+
+    /**
+     * A VertexBuffers subclass to hold combined point/color buffers for a group of VertexArrays, with the vertex ranges
+     * of the members to draw for the current draw.
+     */
+    public class MergedVertexBuffers extends VertexBuffers {
+
+        // The merge group key
+        private Object _groupKey;
+
+        // The member VertexArrays
+        private WeakReference<VertexArray>[] _members;
+
+        // The content hashes of the point and color arrays of each member when uploaded
+        private long[] _pointHashes, _colorHashes;
+
+        // The first vertex and vertex count of each member
+        private int[] _memberStarts, _memberCounts;
+
+        // A map of member to member index
+        private Map<VertexArray,Integer> _memberIndexes = new WeakHashMap<>();
+
+        // The number of draws of group and the draw number of last draw of each member
+        private int _drawNum;
+        private int[] _memberDrawNums;
+
+        // The vertex ranges to draw for current draw
+        private int[] _rangeStarts, _rangeCounts;
+        private int _rangeCount;
+
+        /**
+         * Constructor: Creates and uploads combined buffers for given VertexArrays.
+         */
+        @SuppressWarnings("unchecked")
+        private MergedVertexBuffers(Object aGroupKey, List<VertexArray> theVertexArrays)
+        {
+            // Get members, source arrays and content hashes
+            int count = theVertexArrays.size();
+            _groupKey = aGroupKey;
+            _members = new WeakReference[count];
+            float[][] pointArrays = new float[count][];
+            float[][] colorArrays = new float[count][];
+            _pointHashes = new long[count];
+            _colorHashes = new long[count];
+            _memberStarts = new int[count];
+            _memberCounts = new int[count];
+            _memberDrawNums = new int[count];
+            _rangeStarts = new int[count];
+            _rangeCounts = new int[count];
+            for (int i = 0, start = 0; i < count; i++) {
+                VertexArray vertexArray = theVertexArrays.get(i);
+                _members[i] = new WeakReference<>(vertexArray);
+                pointArrays[i] = vertexArray.getPointArray();
+                colorArrays[i] = getColorArray(vertexArray);
+                _pointHashes[i] = getContentHash(pointArrays[i]);
+                _colorHashes[i] = getContentHash(colorArrays[i]);
+                _memberStarts[i] = start;
+                _memberCounts[i] = pointArrays[i].length / 3;
+                _memberIndexes.put(vertexArray, i);
+                start += _memberCounts[i];
+            }
+
+            // Create/buffer combined pointArray
+            float[] pointArray = concatFloats(pointArrays);
+            _pointBuffer = createBuffer(_gl.ARRAY_BUFFER, new Float32Array(pointArray));
+            _byteCount = pointArray.length * 4L;
+            _vertexCount = pointArray.length / 3;
+
+            // If color arrays present, create/buffer combined colorArray
+            if (colorArrays[0] != null) {
+                float[] colorArray = concatFloats(colorArrays);
+                _colorBuffer = createBuffer(_gl.ARRAY_BUFFER, new Float32Array(colorArray));
+                _byteCount += colorArray.length * 4L;
+            }
+        }
+
+        /**
+         * Returns the number of vertex ranges to draw.
+         */
+        public int getRangeCount()  { return _rangeCount; }
+
+        /**
+         * Returns the first vertex of vertex range at given index.
+         */
+        public int getRangeStart(int anIndex)  { return _rangeStarts[anIndex]; }
+
+        /**
+         * Returns the vertex count of vertex range at given index.
+         */
+        public int getRangeVertexCount(int anIndex)  { return _rangeCounts[anIndex]; }
+
+        /**
+         * Returns whether buffers hold all given VertexArrays.
+         */
+        private boolean containsAll(List<VertexArray> theVertexArrays)
+        {
+            for (VertexArray vertexArray : theVertexArrays)
+                if (!_memberIndexes.containsKey(vertexArray))
+                    return false;
+            return true;
+        }
+
+        /**
+         * Adds members drawn within max member age (and not already in list) to given list.
+         */
+        private void addRecentMembers(List<VertexArray> theVertexArrays)
+        {
+            Map<VertexArray,Boolean> vertexArraysSet = new WeakHashMap<>();
+            for (VertexArray vertexArray : theVertexArrays)
+                vertexArraysSet.put(vertexArray, Boolean.TRUE);
+            for (int i = 0; i < _members.length; i++) {
+                VertexArray member = _members[i].get();
+                if (member != null && _drawNum - _memberDrawNums[i] < MAX_MERGE_MEMBER_AGE && !vertexArraysSet.containsKey(member))
+                    theVertexArrays.add(member);
+            }
+        }
+
+        /**
+         * Sets the draw ranges for given member VertexArrays (adjacent members are coalesced into one range).
+         */
+        private void setDrawRanges(List<VertexArray> theVertexArrays)
+        {
+            // Get sorted member indexes and mark members drawn
+            int count = theVertexArrays.size();
+            int[] indexes = new int[count];
+            _drawNum++;
+            for (int i = 0; i < count; i++) {
+                indexes[i] = _memberIndexes.get(theVertexArrays.get(i));
+                _memberDrawNums[indexes[i]] = _drawNum;
+            }
+            Arrays.sort(indexes);
+
+            // Add ranges, extending last range if member follows it
+            _rangeCount = 0;
+            for (int i = 0; i < count; i++) {
+                int index = indexes[i];
+                if (i > 0 && index == indexes[i - 1] + 1)
+                    _rangeCounts[_rangeCount - 1] += _memberCounts[index];
+                else {
+                    _rangeStarts[_rangeCount] = _memberStarts[index];
+                    _rangeCounts[_rangeCount++] = _memberCounts[index];
+                }
+            }
+        }
+
+        /**
+         * Override to check each member VertexArray (collected members can't be drawn, so are skipped).
+         */
+        @Override
+        protected boolean isCurrent(Object aKey)
+        {
+            for (int i = 0; i < _members.length; i++) {
+                VertexArray vertexArray = _members[i].get();
+                if (vertexArray == null)
+                    continue;
+                if (getContentHash(vertexArray.getPointArray()) != _pointHashes[i] ||
+                    getContentHash(getColorArray(vertexArray)) != _colorHashes[i])
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Override to return whether all members have been garbage collected.
+         */
+        @Override
+        protected boolean isCollected()
+        {
+            for (WeakReference<VertexArray> member : _members)
+                if (member.get() != null)
+                    return false;
+            return true;
+        }
+    }
+
+    /**
+     * Binds given vertex array object (WebGL2), if not already bound. Returns whether binding changed.
+     */
+    public boolean bindVertexArray(WebGLVertexArrayObject aVAO)
+    {
+        if (aVAO == _boundVAO) return false;
+        _gl2.bindVertexArray(aVAO);
+        _boundVAO = aVAO;
+        return true;
+    }
+
+    /**
+     * Unbinds the current vertex array object (WebGL2), since the element array buffer binding is VAO state.
+     * Renderer binds each item's VAO before drawing.
+     */
+    private void unbindVertexArray()
+    {
+        if (_gl2 != null)
+            bindVertexArray(null);
+    }
+
+    /**
+     * Creates a buffer for given float array and uploads data.
+     */
+    private WebGLBuffer createBuffer(int aTarget, Float32Array theData)
+    {
+        WebGLBuffer buffer = _gl.createBuffer();
+        _gl.bindBuffer(aTarget, buffer);
+        _gl.bufferData(aTarget, theData, _gl.STATIC_DRAW);
+        return buffer;
+    }
+
+    /**
+     * Creates a buffer for given int array and uploads data.
+     */
+    private WebGLBuffer createBuffer(int aTarget, Uint32Array theData)
+    {
+        WebGLBuffer buffer = _gl.createBuffer();
+        _gl.bindBuffer(aTarget, buffer);
+        _gl.bufferData(aTarget, theData, _gl.STATIC_DRAW);
+        return buffer;
+    }
+
+    /**
+     * Creates a buffer for given short array and uploads data.
+     */
+    private WebGLBuffer createBuffer(int aTarget, Uint16Array theData)
+    {
+        WebGLBuffer buffer = _gl.createBuffer();
+        _gl.bindBuffer(aTarget, buffer);
+        _gl.bufferData(aTarget, theData, _gl.STATIC_DRAW);
+        return buffer;
+    }
+
+    /**
+     * Returns the given array of vertex components expanded for given indexes.
+     */
+    private static float[] expandIndexedFloats(float[] theArray, int aCompCount, int[] theIndexes)
+    {
+        float[] expandedArray = new float[theIndexes.length * aCompCount];
+        for (int i = 0; i < theIndexes.length; i++)
+            System.arraycopy(theArray, theIndexes[i] * aCompCount, expandedArray, i * aCompCount, aCompCount);
+        return expandedArray;
+    }
+
+    /**
+     * Returns the given float arrays concatenated into one array.
+     */
+    private static float[] concatFloats(float[][] theArrays)
+    {
+        // Get total length
+        int length = 0;
+        for (float[] array : theArrays)
+            length += array.length;
+
+        // Copy arrays into combined array and return
+        float[] combinedArray = new float[length];
+        int offset = 0;
+        for (float[] array : theArrays) {
+            System.arraycopy(array, 0, combinedArray, offset, array.length);
+            offset += array.length;
+        }
+        return combinedArray;
+    }
+
+    /**
+     * Returns the color array of given VertexArray (null if not set).
+     */
+    private static float[] getColorArray(VertexArray aVertexArray)
+    {
+        return aVertexArray.isColorArraySet() ? aVertexArray.getColorArray() : null;
+    }
+
+    /**
+     * Returns the texCoord array of given VertexArray (null if not set or empty).
+     */
+    private static float[] getTexCoordArray(VertexArray aVertexArray)
+    {
+        float[] texCoordArray = aVertexArray.getTexCoordArray();
+        return texCoordArray != null && texCoordArray.length > 0 ? texCoordArray : null;
+    }
+
+    /**
+     * Returns the index array of given VertexArray (null if not set).
+     */
+    private static int[] getIndexArray(VertexArray aVertexArray)
+    {
+        return aVertexArray.isIndexArraySet() ? aVertexArray.getIndexArray() : null;
+    }
+
+    /**
+     * Returns a 64 bit content hash of given float array (0 for null).
+     */
+    static long getContentHash(float[] theArray)
+    {
+        if (theArray == null) return 0;
+        long hash = theArray.length;
+        for (float value : theArray)
+            hash = (hash ^ Float.floatToRawIntBits(value)) * 0x100000001B3L;
+        return mixHash(hash);
+    }
+
+    /**
+     * Returns a 64 bit content hash of given int array (0 for null).
+     */
+    static long getContentHash(int[] theArray)
+    {
+        if (theArray == null) return 0;
+        long hash = theArray.length;
+        for (int value : theArray)
+            hash = (hash ^ value) * 0x100000001B3L;
+        return mixHash(hash);
+    }
+
+    /**
+     * Returns given hash with bits mixed (64 bit MurmurHash3 finalizer), never 0.
+     */
+    private static long mixHash(long aHash)
+    {
+        aHash ^= aHash >>> 33;
+        aHash *= 0xFF51AFD7ED558CCDL;
+        aHash ^= aHash >>> 33;
+        aHash *= 0xC4CEB9FE1A85EC53L;
+        aHash ^= aHash >>> 33;
+        return aHash != 0 ? aHash : 1;
+    }
+}
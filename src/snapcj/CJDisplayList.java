@@ -0,0 +1,1006 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import snap.geom.PathIter;
+import snap.geom.Rect;
+import snap.geom.Seg;
+import snap.geom.Shape;
+import snap.geom.Transform;
+import snap.gfx.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class reads and writes captured painter display lists (the painter calls of each flush, with full operands) in
+ * a compact binary format, so production frames can be replayed offline (see CJDisplayListReplay).
+ *
+ * Ops are recorded at the Painter call level (not as PainterDVR2 stacks), so paints, strokes, shapes and images are
+ * written by value: Gradients with their stops, and images once per file (or per frame if mutable) as PNG bytes.
+ */
+public class CJDisplayList {
+
+    // The dirty rect painted (null if unknown)
+    private Rect _paintRect;
+
+    // The encoded ops
+    private byte[] _opBytes;
+
+    // The decoded ops (lazily loaded)
+    private List<Op> _ops;
+
+    // The file magic number ("SCJD") and version
+    private static final int MAGIC = 0x53434A44;
+    private static final int VERSION = 2;
+
+    // Constants for op codes
+    public static final byte OP_SET_PAINT = 1;
+    public static final byte OP_SET_STROKE = 2;
+    public static final byte OP_SET_OPACITY = 3;
+    public static final byte OP_SET_FONT = 4;
+    public static final byte OP_SET_TRANSFORM = 5;
+    public static final byte OP_TRANSFORM = 6;
+    public static final byte OP_DRAW = 7;
+    public static final byte OP_FILL = 8;
+    public static final byte OP_CLIP = 9;
+    public static final byte OP_DRAW_IMAGE = 10;
+    public static final byte OP_DRAW_IMAGE_RECT = 11;
+    public static final byte OP_DRAW_STRING = 12;
+    public static final byte OP_STROKE_STRING = 13;
+    public static final byte OP_CLEAR_RECT = 14;
+    public static final byte OP_SAVE = 15;
+    public static final byte OP_RESTORE = 16;
+    public static final byte OP_SET_IMAGE_QUALITY = 17;
+    public static final byte OP_SET_COMPOSITE = 18;
+    public static final byte OP_DEFINE_IMAGE = 19;
+
+    // The op names (by op code)
+    private static final String[] OP_NAMES = { null, "SetPaint", "SetStroke", "SetOpacity", "SetFont", "SetTransform",
+        "Transform", "Draw", "Fill", "Clip", "DrawImage", "DrawImageRect", "DrawString", "StrokeString", "ClearRect",
+        "Save", "Restore", "SetImageQuality", "SetComposite", "DefineImage" };
+
+    // Constants for paint types
+    public static final byte PAINT_NULL = 0;
+    public static final byte PAINT_COLOR = 1;
+    public static final byte PAINT_GRADIENT = 2;
+    public static final byte PAINT_IMAGE = 3;
+
+    // Constants for shape types
+    private static final byte SHAPE_RECT = 1;
+    private static final byte SHAPE_PATH = 2;
+
+    /**
+     * Constructor for given paint rect and encoded ops.
+     */
+    public CJDisplayList(Rect aRect, byte[] theOpBytes)
+    {
+        _paintRect = aRect;
+        _opBytes = theOpBytes;
+    }
+
+    /**
+     * Returns the dirty rect painted (null if unknown).
+     */
+    public Rect getPaintRect()  { return _paintRect; }
+
+    /**
+     * Returns the encoded ops.
+     */
+    public byte[] getOpBytes()  { return _opBytes; }
+
+    /**
+     * Returns the decoded ops.
+     */
+    public List<Op> getOps() throws IOException
+    {
+        if (_ops != null) return _ops;
+        return _ops = readOps(_opBytes);
+    }
+
+    /**
+     * Returns the name for given op code.
+     */
+    public static String getOpName(int anOpCode)
+    {
+        return anOpCode > 0 && anOpCode < OP_NAMES.length ? OP_NAMES[anOpCode] : "Op" + anOpCode;
+    }
+
+    /**
+     * Writes the file header (with painter dpi scale) to given stream.
+     */
+    public static void writeHeader(DataOutputStream aStream, int aScale) throws IOException
+    {
+        aStream.writeInt(MAGIC);
+        aStream.writeInt(VERSION);
+        aStream.writeInt(aScale);
+    }
+
+    /**
+     * Reads and checks the file header from given stream and returns the painter dpi scale.
+     */
+    public static int readHeader(DataInputStream aStream) throws IOException
+    {
+        if (aStream.readInt() != MAGIC)
+            throw new IOException("CJDisplayList.readHeader: Not a display list capture file");
+        int version = aStream.readInt();
+        if (version != VERSION)
+            throw new IOException("CJDisplayList.readHeader: Unsupported version " + version);
+        return aStream.readInt();
+    }
+
+    /**
+     * Writes a display list for given paint rect and encoded ops to given stream.
+     */
+    public static void writeDisplayList(DataOutputStream aStream, Rect aRect, byte[] theOpBytes, int aLength) throws IOException
+    {
+        // Write paint rect
+        aStream.writeBoolean(aRect != null);
+        if (aRect != null) {
+            aStream.writeDouble(aRect.x); aStream.writeDouble(aRect.y);
+            aStream.writeDouble(aRect.width); aStream.writeDouble(aRect.height);
+        }
+
+        // Write ops
+        aStream.writeInt(aLength);
+        aStream.write(theOpBytes, 0, aLength);
+    }
+
+    /**
+     * Reads a display list from given stream (returns null at end of stream).
+     */
+    public static CJDisplayList readDisplayList(DataInputStream aStream) throws IOException
+    {
+        // Read paint rect (just return null if at end of stream)
+        Rect paintRect = null;
+        try {
+            if (aStream.readBoolean())
+                paintRect = new Rect(aStream.readDouble(), aStream.readDouble(), aStream.readDouble(), aStream.readDouble());
+        }
+        catch (EOFException e) { return null; }
+
+        // Read ops and return display list
+        byte[] opBytes = new byte[aStream.readInt()];
+        aStream.readFully(opBytes);
+        return new CJDisplayList(paintRect, opBytes);
+    }
+
+    /**
+     * Reads all display lists from given file.
+     */
+    public static List<CJDisplayList> readFile(File aFile) throws IOException
+    {
+        List<CJDisplayList> displayLists = new ArrayList<>();
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(aFile)))) {
+            readHeader(inputStream);
+            for (CJDisplayList displayList = readDisplayList(inputStream); displayList != null; displayList = readDisplayList(inputStream))
+                displayLists.add(displayList);
+        }
+        return displayLists;
+    }
+
+    /**
+     * Reads the dpi scale from header of given file.
+     */
+    public static int readScale(File aFile) throws IOException
+    {
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(aFile)))) {
+            return readHeader(inputStream);
+        }
+    }
+
+    /**
+     * Decodes ops from given bytes.
+     */
+    public static List<Op> readOps(byte[] theBytes) throws IOException
+    {
+        List<Op> ops = new ArrayList<>();
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(theBytes));
+        while (stream.available() > 0)
+            ops.add(readOp(stream));
+        return ops;
+    }
+
+    /**
+     * Reads an op.
+     */
+    private static Op readOp(DataInputStream aStream) throws IOException
+    {
+        byte code = aStream.readByte();
+        switch (code) {
+            case OP_SET_PAINT: return new Op(code, null, null, readPaint(aStream));
+            case OP_SET_STROKE: return new Op(code, null, null, readStroke(aStream));
+            case OP_SET_FONT: return new Op(code, readDoubles(aStream, 1), aStream.readUTF(), null);
+            case OP_SET_OPACITY:
+            case OP_SET_IMAGE_QUALITY: return new Op(code, readDoubles(aStream, 1), null, null);
+            case OP_SET_TRANSFORM:
+            case OP_TRANSFORM: return new Op(code, readDoubles(aStream, 6), null, null);
+            case OP_DRAW:
+            case OP_FILL:
+            case OP_CLIP: return new Op(code, null, null, readShape(aStream));
+            case OP_DRAW_IMAGE: return new Op(code, null, null, aStream.readInt()).setValues(readDoubles(aStream, 6));
+            case OP_DRAW_IMAGE_RECT: return new Op(code, null, null, aStream.readInt()).setValues(readDoubles(aStream, 8));
+            case OP_DRAW_STRING:
+            case OP_STROKE_STRING: return new Op(code, null, readString(aStream), null).setValues(readDoubles(aStream, 3));
+            case OP_CLEAR_RECT: return new Op(code, readDoubles(aStream, 4), null, null);
+            case OP_SAVE:
+            case OP_RESTORE: return new Op(code, null, null, null);
+            case OP_SET_COMPOSITE: return new Op(code, null, aStream.readUTF(), null);
+            case OP_DEFINE_IMAGE: return new Op(code, null, null, readImage(aStream));
+            default: throw new IOException("CJDisplayList.readOp: Unknown op code " + code);
+        }
+    }
+
+    /**
+     * Reads given number of doubles.
+     */
+    private static double[] readDoubles(DataInputStream aStream, int aCount) throws IOException
+    {
+        double[] values = new double[aCount];
+        for (int i = 0; i < aCount; i++)
+            values[i] = aStream.readDouble();
+        return values;
+    }
+
+    /**
+     * Writes a paint.
+     */
+    private static void writePaint(DataOutputStream aStream, Paint aPaint, int anImageId) throws IOException
+    {
+        // Handle null
+        if (aPaint == null)
+            aStream.writeByte(PAINT_NULL);
+
+        // Handle GradientPaint: Write start/end points, absolute flag and stops
+        else if (aPaint instanceof GradientPaint) {
+            GradientPaint gradientPaint = (GradientPaint) aPaint;
+            aStream.writeByte(PAINT_GRADIENT);
+            aStream.writeDouble(gradientPaint.getStartX()); aStream.writeDouble(gradientPaint.getStartY());
+            aStream.writeDouble(gradientPaint.getEndX()); aStream.writeDouble(gradientPaint.getEndY());
+            aStream.writeBoolean(gradientPaint.isAbsolute());
+            int stopCount = gradientPaint.getStopCount();
+            aStream.writeInt(stopCount);
+            for (int i = 0; i < stopCount; i++) {
+                aStream.writeDouble(gradientPaint.getStopOffset(i));
+                aStream.writeInt(getARGB(gradientPaint.getStopColor(i)));
+            }
+        }
+
+        // Handle ImagePaint: Write image id
+        else if (aPaint instanceof ImagePaint) {
+            aStream.writeByte(PAINT_IMAGE);
+            aStream.writeInt(anImageId);
+        }
+
+        // Handle Color (or other paint, painted with its color): Write ARGB
+        else {
+            aStream.writeByte(PAINT_COLOR);
+            aStream.writeInt(getARGB(aPaint.getColor()));
+        }
+    }
+
+    /**
+     * Reads a paint.
+     */
+    private static PaintDesc readPaint(DataInputStream aStream) throws IOException
+    {
+        PaintDesc paintDesc = new PaintDesc();
+        paintDesc._type = aStream.readByte();
+        switch (paintDesc._type) {
+            case PAINT_NULL: break;
+            case PAINT_COLOR: paintDesc._argb = aStream.readInt(); break;
+            case PAINT_GRADIENT:
+                paintDesc._points = readDoubles(aStream, 4);
+                paintDesc._absolute = aStream.readBoolean();
+                int stopCount = aStream.readInt();
+                paintDesc._stopOffsets = new double[stopCount];
+                paintDesc._stopColors = new int[stopCount];
+                for (int i = 0; i < stopCount; i++) {
+                    paintDesc._stopOffsets[i] = aStream.readDouble();
+                    paintDesc._stopColors[i] = aStream.readInt();
+                }
+                break;
+            case PAINT_IMAGE: paintDesc._imageId = aStream.readInt(); break;
+            default: throw new IOException("CJDisplayList.readPaint: Unknown paint type " + paintDesc._type);
+        }
+        return paintDesc;
+    }
+
+    /**
+     * Writes a stroke.
+     */
+    private static void writeStroke(DataOutputStream aStream, Stroke aStroke) throws IOException
+    {
+        aStream.writeDouble(aStroke.getWidth());
+        aStream.writeUTF(aStroke.getCap().name());
+        aStream.writeUTF(aStroke.getJoin().name());
+        aStream.writeDouble(aStroke.getMiterLimit());
+        double[] dashArray = aStroke.getDashArray();
+        aStream.writeInt(dashArray != null ? dashArray.length : -1);
+        if (dashArray != null)
+            for (double dash : dashArray)
+                aStream.writeDouble(dash);
+        aStream.writeDouble(aStroke.getDashOffset());
+    }
+
+    /**
+     * Reads a stroke.
+     */
+    private static StrokeDesc readStroke(DataInputStream aStream) throws IOException
+    {
+        StrokeDesc strokeDesc = new StrokeDesc();
+        strokeDesc._width = aStream.readDouble();
+        strokeDesc._cap = aStream.readUTF();
+        strokeDesc._join = aStream.readUTF();
+        strokeDesc._miterLimit = aStream.readDouble();
+        int dashCount = aStream.readInt();
+        strokeDesc._dashArray = dashCount >= 0 ? readDoubles(aStream, dashCount) : null;
+        strokeDesc._dashOffset = aStream.readDouble();
+        return strokeDesc;
+    }
+
+    /**
+     * Writes a shape: Rects as x, y, w, h and other shapes as segments (type char and points).
+     */
+    private static void writeShape(DataOutputStream aStream, Shape aShape) throws IOException
+    {
+        // Handle Rect
+        if (aShape instanceof Rect) {
+            Rect rect = (Rect) aShape;
+            aStream.writeByte(SHAPE_RECT);
+            aStream.writeDouble(rect.x); aStream.writeDouble(rect.y);
+            aStream.writeDouble(rect.width); aStream.writeDouble(rect.height);
+            return;
+        }
+
+        // Handle other shapes: Write segments (to byte array first, since count isn't known)
+        ByteArrayOutputStream segBytes = new ByteArrayOutputStream();
+        DataOutputStream segStream = new DataOutputStream(segBytes);
+        double[] pnts = new double[6];
+        int segCount = 0;
+        PathIter pathIter = aShape.getPathIter(null);
+        while (pathIter.hasNext()) {
+            Seg seg = pathIter.getNext(pnts);
+            switch (seg) {
+                case MoveTo: segStream.writeByte('M'); break;
+                case LineTo: segStream.writeByte('L'); break;
+                case QuadTo: segStream.writeByte('Q'); break;
+                case CubicTo: segStream.writeByte('C'); break;
+                case Close: segStream.writeByte('Z'); break;
+            }
+            for (int i = 0, iMax = seg.getCount() * 2; i < iMax; i++)
+                segStream.writeDouble(pnts[i]);
+            segCount++;
+        }
+        aStream.writeByte(SHAPE_PATH);
+        aStream.writeInt(segCount);
+        segBytes.writeTo(aStream);
+    }
+
+    /**
+     * Reads a shape.
+     */
+    private static ShapeDesc readShape(DataInputStream aStream) throws IOException
+    {
+        ShapeDesc shapeDesc = new ShapeDesc();
+        byte type = aStream.readByte();
+
+        // Handle Rect
+        if (type == SHAPE_RECT) {
+            shapeDesc._rect = readDoubles(aStream, 4);
+            return shapeDesc;
+        }
+        if (type != SHAPE_PATH)
+            throw new IOException("CJDisplayList.readShape: Unknown shape type " + type);
+
+        // Handle path: Read segments
+        int segCount = aStream.readInt();
+        shapeDesc._segTypes = new char[segCount];
+        double[] coords = new double[segCount * 6];
+        int coordCount = 0;
+        for (int i = 0; i < segCount; i++) {
+            char segType = shapeDesc._segTypes[i] = (char) aStream.readByte();
+            int segCoordCount = getSegCoordCount(segType);
+            for (int j = 0; j < segCoordCount; j++)
+                coords[coordCount++] = aStream.readDouble();
+        }
+        shapeDesc._coords = Arrays.copyOf(coords, coordCount);
+        return shapeDesc;
+    }
+
+    /**
+     * Returns the number of coords for given segment type char.
+     */
+    static int getSegCoordCount(char aSegType)
+    {
+        switch (aSegType) {
+            case 'M': case 'L': return 2;
+            case 'Q': return 4;
+            case 'C': return 6;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Writes an image definition (id, point/pixel size and PNG bytes, if available).
+     */
+    private static void writeImage(DataOutputStream aStream, int anId, Image anImage) throws IOException
+    {
+        aStream.writeInt(anId);
+        aStream.writeDouble(anImage.getWidth());
+        aStream.writeDouble(anImage.getHeight());
+        aStream.writeInt(anImage.getPixWidth());
+        aStream.writeInt(anImage.getPixHeight());
+        byte[] pngBytes = anImage.isLoaded() ? anImage.getBytesPNG() : null;
+        aStream.writeInt(pngBytes != null ? pngBytes.length : 0);
+        if (pngBytes != null)
+            aStream.write(pngBytes);
+    }
+
+    /**
+     * Reads an image definition.
+     */
+    private static ImageDesc readImage(DataInputStream aStream) throws IOException
+    {
+        ImageDesc imageDesc = new ImageDesc();
+        imageDesc._id = aStream.readInt();
+        imageDesc._width = aStream.readDouble();
+        imageDesc._height = aStream.readDouble();
+        imageDesc._pixWidth = aStream.readInt();
+        imageDesc._pixHeight = aStream.readInt();
+        imageDesc._pngBytes = new byte[aStream.readInt()];
+        aStream.readFully(imageDesc._pngBytes);
+        return imageDesc;
+    }
+
+    /**
+     * Writes a string that can be null (as length and chars, since drawn strings can exceed writeUTF limit).
+     */
+    private static void writeString(DataOutputStream aStream, String aStr) throws IOException
+    {
+        aStream.writeInt(aStr != null ? aStr.length() : -1);
+        if (aStr != null)
+            aStream.writeChars(aStr);
+    }
+
+    /**
+     * Reads a string that can be null.
+     */
+    private static String readString(DataInputStream aStream) throws IOException
+    {
+        int length = aStream.readInt();
+        if (length < 0) return null;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = aStream.readChar();
+        return new String(chars);
+    }
+
+    /**
+     * Returns the ARGB int for given color.
+     */
+    private static int getARGB(Color aColor)
+    {
+        if (aColor == null) return 0;
+        return aColor.getAlphaInt() << 24 | aColor.getRedInt() << 16 | aColor.getGreenInt() << 8 | aColor.getBlueInt();
+    }
+
+    /**
+     * A class to encode painter calls as ops, with images written inline the first time they are used.
+     */
+    public static class Recorder {
+
+        // The op bytes and stream
+        private ByteArrayOutputStream _opBytes = new ByteArrayOutputStream();
+        private DataOutputStream _opStream = new DataOutputStream(_opBytes);
+
+        // The ids of images already written (per recorder for immutable images, per frame for mutable ones)
+        private Map<Image,Integer> _imageIds = new IdentityHashMap<>();
+        private Set<Image> _frameImages = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        /**
+         * Records set paint.
+         */
+        public void setPaint(Paint aPaint) throws IOException
+        {
+            int imageId = aPaint instanceof ImagePaint ? getImageId(((ImagePaint) aPaint).getImage()) : 0;
+            _opStream.writeByte(OP_SET_PAINT);
+            writePaint(_opStream, aPaint, imageId);
+        }
+
+        /**
+         * Records set stroke.
+         */
+        public void setStroke(Stroke aStroke) throws IOException
+        {
+            _opStream.writeByte(OP_SET_STROKE);
+            writeStroke(_opStream, aStroke != null ? aStroke : Stroke.Stroke1);
+        }
+
+        /**
+         * Records set opacity.
+         */
+        public void setOpacity(double aValue) throws IOException
+        {
+            _opStream.writeByte(OP_SET_OPACITY);
+            _opStream.writeDouble(aValue);
+        }
+
+        /**
+         * Records set font.
+         */
+        public void setFont(Font aFont) throws IOException
+        {
+            _opStream.writeByte(OP_SET_FONT);
+            _opStream.writeDouble(aFont.getSize());
+            _opStream.writeUTF(aFont.getName());
+        }
+
+        /**
+         * Records set transform (or transform, if concat).
+         */
+        public void setTransform(Transform aTrans, boolean isConcat) throws IOException
+        {
+            _opStream.writeByte(isConcat ? OP_TRANSFORM : OP_SET_TRANSFORM);
+            for (double value : aTrans.getMatrix())
+                _opStream.writeDouble(value);
+        }
+
+        /**
+         * Records draw, fill or clip of shape.
+         */
+        public void shape(byte anOpCode, Shape aShape) throws IOException
+        {
+            _opStream.writeByte(anOpCode);
+            writeShape(_opStream, aShape);
+        }
+
+        /**
+         * Records draw image with transform.
+         */
+        public void drawImage(Image anImage, Transform aTrans) throws IOException
+        {
+            int imageId = getImageId(anImage);
+            _opStream.writeByte(OP_DRAW_IMAGE);
+            _opStream.writeInt(imageId);
+            for (double value : aTrans.getMatrix())
+                _opStream.writeDouble(value);
+        }
+
+        /**
+         * Records draw image in rect.
+         */
+        public void drawImage(Image anImage, double srcX, double srcY, double srcW, double srcH, double dx, double dy, double dw, double dh) throws IOException
+        {
+            int imageId = getImageId(anImage);
+            _opStream.writeByte(OP_DRAW_IMAGE_RECT);
+            _opStream.writeInt(imageId);
+            _opStream.writeDouble(srcX); _opStream.writeDouble(srcY); _opStream.writeDouble(srcW); _opStream.writeDouble(srcH);
+            _opStream.writeDouble(dx); _opStream.writeDouble(dy); _opStream.writeDouble(dw); _opStream.writeDouble(dh);
+        }
+
+        /**
+         * Records draw or stroke string.
+         */
+        public void string(byte anOpCode, String aStr, double aX, double aY, double charSpacing) throws IOException
+        {
+            _opStream.writeByte(anOpCode);
+            writeString(_opStream, aStr);
+            _opStream.writeDouble(aX); _opStream.writeDouble(aY); _opStream.writeDouble(charSpacing);
+        }
+
+        /**
+         * Records clear rect.
+         */
+        public void clearRect(double aX, double aY, double aW, double aH) throws IOException
+        {
+            _opStream.writeByte(OP_CLEAR_RECT);
+            _opStream.writeDouble(aX); _opStream.writeDouble(aY); _opStream.writeDouble(aW); _opStream.writeDouble(aH);
+        }
+
+        /**
+         * Records save or restore.
+         */
+        public void saveOrRestore(boolean isSave) throws IOException
+        {
+            _opStream.writeByte(isSave ? OP_SAVE : OP_RESTORE);
+        }
+
+        /**
+         * Records set image quality.
+         */
+        public void setImageQuality(double aValue) throws IOException
+        {
+            _opStream.writeByte(OP_SET_IMAGE_QUALITY);
+            _opStream.writeDouble(aValue);
+        }
+
+        /**
+         * Records set composite.
+         */
+        public void setComposite(Composite aComp) throws IOException
+        {
+            _opStream.writeByte(OP_SET_COMPOSITE);
+            _opStream.writeUTF(aComp.name());
+        }
+
+        /**
+         * Returns the id for given image, writing its definition if not yet written (mutable images once per frame,
+         * since their pixels can change).
+         */
+        private int getImageId(Image anImage) throws IOException
+        {
+            // If already written (and not mutable or already written this frame), just return id
+            Integer imageId = _imageIds.get(anImage);
+            boolean isMutable = CJPainter2.isMutableImage(anImage);
+            if (imageId != null && (!isMutable || _frameImages.contains(anImage)))
+                return imageId;
+
+            // Get id, write definition and return id
+            if (imageId == null)
+                _imageIds.put(anImage, imageId = _imageIds.size() + 1);
+            if (isMutable)
+                _frameImages.add(anImage);
+            _opStream.writeByte(OP_DEFINE_IMAGE);
+            writeImage(_opStream, imageId, anImage);
+            return imageId;
+        }
+
+        /**
+         * Returns the encoded ops of current frame.
+         */
+        public byte[] getOpBytes()  { return _opBytes.toByteArray(); }
+
+        /**
+         * Writes current frame ops as display list for given paint rect to given stream and starts next frame.
+         */
+        public void writeDisplayList(DataOutputStream aStream, Rect aRect) throws IOException
+        {
+            _opStream.flush();
+            CJDisplayList.writeDisplayList(aStream, aRect, getOpBytes(), _opBytes.size());
+            _opBytes.reset();
+            _frameImages.clear();
+        }
+    }
+
+    /**
+     * A class to hold a decoded op: Op code, numeric operands, string operand and paint/stroke/shape/image operand.
+     */
+    public static class Op {
+
+        // The op code
+        private byte _code;
+
+        // The numeric operands (matrix, coords, rect, opacity, etc.)
+        private double[] _values;
+
+        // The string operand (text, font name or composite)
+        private String _text;
+
+        // The paint, stroke, shape or image operand (or image id)
+        private Object _arg;
+
+        /**
+         * Constructor.
+         */
+        public Op(byte aCode, double[] theValues, String aText, Object anArg)
+        {
+            _code = aCode;
+            _values = theValues;
+            _text = aText;
+            _arg = anArg;
+        }
+
+        /**
+         * Returns the op code.
+         */
+        public byte getCode()  { return _code; }
+
+        /**
+         * Returns the op name.
+         */
+        public String getName()  { return getOpName(_code); }
+
+        /**
+         * Returns the numeric operands.
+         */
+        public double[] getValues()  { return _values; }
+
+        /**
+         * Sets the numeric operands.
+         */
+        private Op setValues(double[] theValues)  { _values = theValues; return this; }
+
+        /**
+         * Returns the string operand.
+         */
+        public String getText()  { return _text; }
+
+        /**
+         * Returns the paint, stroke, shape or image operand (or image id).
+         */
+        public Object getArg()  { return _arg; }
+
+        /**
+         * Returns the paint operand.
+         */
+        public PaintDesc getPaint()  { return (PaintDesc) _arg; }
+
+        /**
+         * Returns the stroke operand.
+         */
+        public StrokeDesc getStroke()  { return (StrokeDesc) _arg; }
+
+        /**
+         * Returns the shape operand.
+         */
+        public ShapeDesc getShape()  { return (ShapeDesc) _arg; }
+
+        /**
+         * Returns the image definition operand.
+         */
+        public ImageDesc getImage()  { return (ImageDesc) _arg; }
+
+        /**
+         * Returns the image id operand.
+         */
+        public int getImageId()  { return (Integer) _arg; }
+
+        /**
+         * Standard toString implementation.
+         */
+        @Override
+        public String toString()
+        {
+            String str = getName();
+            if (_text != null) str += " \"" + _text + '"';
+            if (_values != null) str += ' ' + Arrays.toString(_values);
+            if (_arg != null) str += ' ' + _arg.toString();
+            return str;
+        }
+    }
+
+    /**
+     * A class to describe a recorded paint.
+     */
+    public static class PaintDesc {
+
+        // The paint type
+        private byte _type;
+
+        // The color ARGB
+        private int _argb;
+
+        // The gradient start/end points, absolute flag and stops
+        private double[] _points;
+        private boolean _absolute;
+        private double[] _stopOffsets;
+        private int[] _stopColors;
+
+        // The image paint image id
+        private int _imageId;
+
+        /**
+         * Returns the paint type.
+         */
+        public byte getType()  { return _type; }
+
+        /**
+         * Returns the color ARGB.
+         */
+        public int getARGB()  { return _argb; }
+
+        /**
+         * Returns the gradient start/end points (x0, y0, x1, y1).
+         */
+        public double[] getPoints()  { return _points; }
+
+        /**
+         * Returns whether gradient is absolute (otherwise sized to each shape).
+         */
+        public boolean isAbsolute()  { return _absolute; }
+
+        /**
+         * Returns the gradient stop offsets.
+         */
+        public double[] getStopOffsets()  { return _stopOffsets; }
+
+        /**
+         * Returns the gradient stop colors (ARGB).
+         */
+        public int[] getStopColors()  { return _stopColors; }
+
+        /**
+         * Returns the image paint image id.
+         */
+        public int getImageId()  { return _imageId; }
+
+        /**
+         * Returns a key string for paint value (the style a context would be set to).
+         */
+        public String getKey()
+        {
+            switch (_type) {
+                case PAINT_COLOR: return String.format("#%08X", _argb);
+                case PAINT_GRADIENT: return "gradient" + Arrays.toString(_points) + Arrays.toString(_stopOffsets) + Arrays.toString(_stopColors);
+                case PAINT_IMAGE: return "image" + _imageId;
+                default: return null;
+            }
+        }
+
+        /**
+         * Standard toString implementation.
+         */
+        @Override
+        public String toString()  { return String.valueOf(getKey()); }
+    }
+
+    /**
+     * A class to describe a recorded stroke.
+     */
+    public static class StrokeDesc {
+
+        // The width, cap and join names, miter limit, dash array and dash offset
+        private double _width;
+        private String _cap, _join;
+        private double _miterLimit;
+        private double[] _dashArray;
+        private double _dashOffset;
+
+        /**
+         * Returns the width.
+         */
+        public double getWidth()  { return _width; }
+
+        /**
+         * Returns the cap name (Stroke.Cap).
+         */
+        public String getCap()  { return _cap; }
+
+        /**
+         * Returns the join name (Stroke.Join).
+         */
+        public String getJoin()  { return _join; }
+
+        /**
+         * Returns the miter limit.
+         */
+        public double getMiterLimit()  { return _miterLimit; }
+
+        /**
+         * Returns the dash array (can be null).
+         */
+        public double[] getDashArray()  { return _dashArray; }
+
+        /**
+         * Returns the dash offset.
+         */
+        public double getDashOffset()  { return _dashOffset; }
+
+        /**
+         * Returns the amount stroke extends beyond shape bounds (as CJPainter.getStrokeOutset()).
+         */
+        public double getOutset()
+        {
+            double outset = _width / 2;
+            if (_join.equals(Stroke.Join.Miter.name()))
+                return outset * Math.max(_miterLimit, Math.sqrt(2));
+            return outset * Math.sqrt(2);
+        }
+
+        /**
+         * Standard toString implementation.
+         */
+        @Override
+        public String toString()  { return _width + " " + _cap + ' ' + _join; }
+    }
+
+    /**
+     * A class to describe a recorded shape (rect or path segments).
+     */
+    public static class ShapeDesc {
+
+        // The rect (x, y, w, h), if rect
+        private double[] _rect;
+
+        // The path segment types (M, L, Q, C, Z) and coords, if path
+        private char[] _segTypes;
+        private double[] _coords;
+
+        /**
+         * Returns the rect (x, y, w, h), if rect.
+         */
+        public double[] getRect()  { return _rect; }
+
+        /**
+         * Returns whether shape is rect.
+         */
+        public boolean isRect()  { return _rect != null; }
+
+        /**
+         * Returns the path segment types (M, L, Q, C, Z), if path.
+         */
+        public char[] getSegTypes()  { return _segTypes; }
+
+        /**
+         * Returns the path coords, if path.
+         */
+        public double[] getCoords()  { return _coords; }
+
+        /**
+         * Returns the bounds (x, y, w, h) - for paths, of all points (including control points).
+         */
+        public double[] getBounds()
+        {
+            if (_rect != null) return _rect;
+            if (_coords.length == 0) return new double[4];
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            for (int i = 0; i < _coords.length; i += 2) {
+                minX = Math.min(minX, _coords[i]); maxX = Math.max(maxX, _coords[i]);
+                minY = Math.min(minY, _coords[i + 1]); maxY = Math.max(maxY, _coords[i + 1]);
+            }
+            return new double[] { minX, minY, maxX - minX, maxY - minY };
+        }
+
+        /**
+         * Returns a key string for path value (as a path cache would key it).
+         */
+        public String getPathKey()  { return new String(_segTypes) + Arrays.toString(_coords); }
+
+        /**
+         * Standard toString implementation.
+         */
+        @Override
+        public String toString()
+        {
+            return _rect != null ? "rect" + Arrays.toString(_rect) : "path(" + _segTypes.length + " segs)";
+        }
+    }
+
+    /**
+     * A class to describe a recorded image.
+     */
+    public static class ImageDesc {
+
+        // The id, point size, pixel size and PNG bytes (empty if not loaded)
+        private int _id;
+        private double _width, _height;
+        private int _pixWidth, _pixHeight;
+        private byte[] _pngBytes;
+
+        /**
+         * Returns the id.
+         */
+        public int getId()  { return _id; }
+
+        /**
+         * Returns the width in points.
+         */
+        public double getWidth()  { return _width; }
+
+        /**
+         * Returns the height in points.
+         */
+        public double getHeight()  { return _height; }
+
+        /**
+         * Returns the width in pixels.
+         */
+        public int getPixWidth()  { return _pixWidth; }
+
+        /**
+         * Returns the height in pixels.
+         */
+        public int getPixHeight()  { return _pixHeight; }
+
+        /**
+         * Returns the PNG bytes (empty if image wasn't loaded).
+         */
+        public byte[] getPngBytes()  { return _pngBytes; }
+
+        /**
+         * Standard toString implementation.
+         */
+        @Override
+        public String toString()  { return "image" + _id + ' ' + _pixWidth + 'x' + _pixHeight; }
+    }
+}
@@ -0,0 +1,769 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import snapcj.CJDisplayList.Op;
+import snapcj.CJDisplayList.PaintDesc;
+import snapcj.CJDisplayList.ShapeDesc;
+import snapcj.CJDisplayList.StrokeDesc;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A headless replay of display lists captured by CJPainter2 (see CJPainter2.setCaptureFile()). Each captured painter
+ * call is translated to canvas context calls the way CJPainter does (shadow state elision, lazy transform sync,
+ * clip culling, native save only for clips, paint and Path2D caches), against a RecordingContext stand-in that counts
+ * the calls. Reports op counts, state sets/elided, culled ops and bridge-call estimates in a plain JVM.
+ *
+ * Text isn't culled (font metrics need the browser) and rect batching is off, as for CJPainter2's painter.
+ *
+ * Usage: java snapcj.CJDisplayListReplay capture.scjd [iterations]
+ */
+public class CJDisplayListReplay {
+
+    // The recording context
+    private RecordingContext _cntx = new RecordingContext();
+
+    // The painter dpi scale
+    private int _scale;
+
+    // The painter transform (with dpi scale) and the context transform
+    private double[] _matrix = new double[6];
+    private double[] _cntxMatrix = { Double.NaN, 0, 0, 0, 0, 0 };
+
+    // The clip bounds in canvas pixels (minX, minY, maxX, maxY)
+    private double[] _clipBounds = { -Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+
+    // The painter state: Paint key (and whether relative gradient), stroke, opacity, font, composite and image quality
+    private PainterState _state = new PainterState();
+
+    // The shadow context state (property name to value, missing if unknown)
+    private Map<String,Object> _cntxState = new HashMap<>();
+
+    // The save levels
+    private List<SaveLevel> _saveLevels = new ArrayList<>();
+
+    // The image definitions by id (persist across frames)
+    private Map<Integer,CJDisplayList.ImageDesc> _images = new HashMap<>();
+
+    // The keys of created gradients/patterns and Path2Ds (as shared paint and path caches)
+    private Set<String> _paintKeys = new HashSet<>();
+    private Set<String> _pathKeys = new HashSet<>();
+
+    // The images converted to JS handles (as CJPainter2 handle table)
+    private Set<Integer> _imageHandles = new HashSet<>();
+
+    // The number of frames and ops
+    private int _frameCount, _opCount;
+
+    // The op counts by op name
+    private Map<String,Integer> _opCounts = new HashMap<>();
+
+    // The number of context state sets, elided state sets, culled ops and native saves
+    private int _stateSetCount, _stateElidedCount, _culledCount, _nativeSaveCount;
+
+    // The estimated number of bridge calls for stack transport (CJPainter2)
+    private long _stackBridgeCallCount;
+
+    // Reusable bounds array
+    private double[] _devBounds = new double[4];
+
+    /**
+     * Constructor for given painter dpi scale.
+     */
+    public CJDisplayListReplay(int aScale)
+    {
+        _scale = aScale;
+        _matrix[0] = _matrix[3] = aScale;
+    }
+
+    /**
+     * Returns the recording context.
+     */
+    public RecordingContext getContext()  { return _cntx; }
+
+    /**
+     * Replays given display lists.
+     */
+    public void replayDisplayLists(List<CJDisplayList> theDisplayLists) throws IOException
+    {
+        for (CJDisplayList displayList : theDisplayLists)
+            replayDisplayList(displayList);
+    }
+
+    /**
+     * Replays given display list.
+     */
+    public void replayDisplayList(CJDisplayList aDisplayList) throws IOException
+    {
+        _frameCount++;
+
+        // Stack transport is one paintStacks call per frame (plus paint and image conversions, counted as replayed)
+        _stackBridgeCallCount++;
+
+        // Replay ops
+        for (Op op : aDisplayList.getOps()) {
+            _opCounts.merge(op.getName(), 1, Integer::sum);
+            _opCount++;
+            replayOp(op);
+        }
+    }
+
+    /**
+     * Replays given op.
+     */
+    private void replayOp(Op anOp)
+    {
+        double[] v = anOp.getValues();
+        switch (anOp.getCode()) {
+            case CJDisplayList.OP_DEFINE_IMAGE: _images.put(anOp.getImage().getId(), anOp.getImage()); break;
+            case CJDisplayList.OP_SET_PAINT: setPaint(anOp.getPaint()); break;
+            case CJDisplayList.OP_SET_STROKE: _state.stroke = anOp.getStroke(); applyStroke(); break;
+            case CJDisplayList.OP_SET_OPACITY: _state.opacity = v[0]; setCntx("globalAlpha", v[0]); break;
+            case CJDisplayList.OP_SET_FONT: _state.font = v[0] + "px " + anOp.getText(); setCntx("font", _state.font); break;
+            case CJDisplayList.OP_SET_TRANSFORM:
+                _matrix[0] = v[0] * _scale; _matrix[1] = v[1]; _matrix[2] = v[2]; _matrix[3] = v[3] * _scale;
+                _matrix[4] = v[4]; _matrix[5] = v[5];
+                break;
+            case CJDisplayList.OP_TRANSFORM: multiplyMatrix(_matrix, v, _matrix); break;
+            case CJDisplayList.OP_DRAW: drawShape(anOp.getShape(), false); break;
+            case CJDisplayList.OP_FILL: drawShape(anOp.getShape(), true); break;
+            case CJDisplayList.OP_CLIP: clip(anOp.getShape()); break;
+            case CJDisplayList.OP_DRAW_IMAGE: drawImage(anOp.getImageId(), v); break;
+            case CJDisplayList.OP_DRAW_IMAGE_RECT: drawImageRect(anOp.getImageId(), v); break;
+            case CJDisplayList.OP_DRAW_STRING:
+            case CJDisplayList.OP_STROKE_STRING: drawString(anOp.getText(), v, anOp.getCode() == CJDisplayList.OP_DRAW_STRING); break;
+            case CJDisplayList.OP_CLEAR_RECT:
+                if (isClippedOut(v[0], v[1], v[2], v[3], 0, _matrix)) break;
+                syncTransform();
+                _cntx.clearRect(v[0], v[1], v[2], v[3]);
+                break;
+            case CJDisplayList.OP_SAVE: save(); break;
+            case CJDisplayList.OP_RESTORE: restore(); break;
+            case CJDisplayList.OP_SET_IMAGE_QUALITY: _state.imageQuality = v[0]; setCntx("imageSmoothingEnabled", v[0] > .33); break;
+            case CJDisplayList.OP_SET_COMPOSITE: _state.composite = getCompositeOperation(anOp.getText()); setCntx("globalCompositeOperation", _state.composite); break;
+        }
+    }
+
+    /**
+     * Sets the painter paint and applies it to context.
+     */
+    private void setPaint(PaintDesc aPaint)
+    {
+        _state.paintType = aPaint.getType();
+        _state.paintKey = aPaint.getKey();
+        _state.paintRelative = aPaint.getType() == CJDisplayList.PAINT_GRADIENT && !aPaint.isAbsolute();
+
+        // Create gradient/pattern if new (as shared paint cache): gradient is create plus a call per stop
+        if (aPaint.getType() == CJDisplayList.PAINT_GRADIENT) {
+            _state.paintStopCount = aPaint.getStopOffsets().length;
+            createGradient(_state.paintKey, _state.paintStopCount);
+        }
+        else if (aPaint.getType() == CJDisplayList.PAINT_IMAGE && _paintKeys.add(_state.paintKey)) {
+            _cntx.createPattern();
+            _stackBridgeCallCount++;
+        }
+        applyPaint();
+    }
+
+    /**
+     * Creates a gradient for given key if new.
+     */
+    private void createGradient(String aKey, int aStopCount)
+    {
+        if (!_paintKeys.add(aKey)) return;
+        _cntx.createLinearGradient();
+        for (int i = 0; i < aStopCount; i++)
+            _cntx.addColorStop();
+        _stackBridgeCallCount += 1 + aStopCount;
+    }
+
+    /**
+     * Applies the painter paint to context: Colors set fill and stroke style, gradients and patterns just fill style.
+     */
+    private void applyPaint()
+    {
+        if (_state.paintType == CJDisplayList.PAINT_COLOR) {
+            setCntx("fillStyle", _state.paintKey);
+            setCntx("strokeStyle", _state.paintKey);
+        }
+        else if (_state.paintKey != null)
+            setCntx("fillStyle", _state.paintKey);
+    }
+
+    /**
+     * Applies the painter stroke to context.
+     */
+    private void applyStroke()
+    {
+        StrokeDesc stroke = _state.stroke;
+        if (stroke == null) return;
+        setCntx("lineWidth", stroke.getWidth());
+        setCntx("lineDash", stroke.getDashArray());
+        setCntx("lineDashOffset", stroke.getDashOffset());
+        setCntx("lineCap", stroke.getCap().toLowerCase());
+        setCntx("lineJoin", stroke.getJoin().toLowerCase());
+        if (stroke.getJoin().equals("Miter"))
+            setCntx("miterLimit", stroke.getMiterLimit());
+    }
+
+    /**
+     * Draws or fills a shape.
+     */
+    private void drawShape(ShapeDesc aShape, boolean isFill)
+    {
+        // If relative gradient is set, size to shape bounds (as CJPainter.sizeGradientPaintToShape)
+        double[] bounds = aShape.getBounds();
+        if (_state.paintRelative) {
+            _state.paintKey += Arrays.toString(bounds);
+            _state.paintRelative = false;
+            createGradient(_state.paintKey, _state.paintStopCount);
+            applyPaint();
+        }
+
+        // If shape (outset by stroke) is outside clip, just return
+        double outset = isFill ? 0 : _state.stroke != null ? _state.stroke.getOutset() : Math.sqrt(2) / 2;
+        if (isClippedOut(bounds[0], bounds[1], bounds[2], bounds[3], outset, _matrix))
+            return;
+
+        // Handle rect: Fill or stroke rect
+        syncTransform();
+        if (aShape.isRect()) {
+            if (isFill) _cntx.fillRect(bounds[0], bounds[1], bounds[2], bounds[3]);
+            else _cntx.strokeRect(bounds[0], bounds[1], bounds[2], bounds[3]);
+        }
+
+        // Handle other shapes: Get path and fill or stroke
+        else {
+            getPath(aShape);
+            if (isFill) _cntx.fill();
+            else _cntx.stroke();
+        }
+    }
+
+    /**
+     * Clips to a shape.
+     */
+    private void clip(ShapeDesc aShape)
+    {
+        syncTransform();
+
+        // If inside save level without native save, save context so restore can remove clip
+        int levelCount = _saveLevels.size();
+        if (levelCount > 0) {
+            SaveLevel saveLevel = _saveLevels.get(levelCount - 1);
+            if (!saveLevel.nativeSaved) {
+                _cntx.save();
+                saveLevel.nativeSaved = true;
+                saveLevel.nativeCntxState = new HashMap<>(_cntxState);
+                saveLevel.nativeCntxMatrix = _cntxMatrix.clone();
+                _nativeSaveCount++;
+            }
+        }
+
+        // Intersect clip bounds with shape bounds in canvas pixels
+        double[] bounds = aShape.getBounds();
+        double[] devBounds = CJPainter.getDeviceBounds(bounds[0], bounds[1], bounds[2], bounds[3], 0, _matrix, _devBounds);
+        _clipBounds[0] = Math.max(_clipBounds[0], devBounds[0]);
+        _clipBounds[1] = Math.max(_clipBounds[1], devBounds[1]);
+        _clipBounds[2] = Math.min(_clipBounds[2], devBounds[2]);
+        _clipBounds[3] = Math.min(_clipBounds[3], devBounds[3]);
+
+        // Handle rect: Set rect path and clip
+        if (aShape.isRect()) {
+            _cntx.beginPath();
+            _cntx.rect(bounds[0], bounds[1], bounds[2], bounds[3]);
+            _cntx.clip();
+        }
+
+        // Handle other shapes: Get path and clip
+        else {
+            getPath(aShape);
+            _cntx.clip();
+        }
+    }
+
+    /**
+     * Gets the Path2D for given shape, creating it if new (as path cache).
+     */
+    private void getPath(ShapeDesc aShape)
+    {
+        if (_pathKeys.add(aShape.getPathKey()))
+            _cntx.newPath2D();
+    }
+
+    /**
+     * Draws image with transform.
+     */
+    private void drawImage(int anImageId, double[] theMatrix)
+    {
+        // Get current transform plus image transform (just return if image at pixel size is outside clip)
+        double[] imageMatrix = new double[6];
+        multiplyMatrix(_matrix, theMatrix, imageMatrix);
+        CJDisplayList.ImageDesc image = _images.get(anImageId);
+        int pixW = image != null ? image.getPixWidth() : 0, pixH = image != null ? image.getPixHeight() : 0;
+        if (isClippedOut(0, 0, pixW, pixH, 0, imageMatrix))
+            return;
+
+        // Set context transform to image matrix and draw image
+        setCntxTransform(imageMatrix);
+        convertImage(anImageId);
+        _cntx.drawImage();
+    }
+
+    /**
+     * Draws image in rect (values are source x, y, w, h and dest x, y, w, h).
+     */
+    private void drawImageRect(int anImageId, double[] v)
+    {
+        if (isClippedOut(v[4], v[5], v[6], v[7], 0, _matrix))
+            return;
+        syncTransform();
+        convertImage(anImageId);
+        _cntx.drawImage();
+    }
+
+    /**
+     * Counts stack transport conversion of image to JS handle, if new.
+     */
+    private void convertImage(int anImageId)
+    {
+        if (_imageHandles.add(anImageId))
+            _stackBridgeCallCount++;
+    }
+
+    /**
+     * Fills or strokes string (values are x, y and char spacing).
+     */
+    private void drawString(String aStr, double[] v, boolean isFill)
+    {
+        syncTransform();
+        boolean charSpaced = v[2] != 0;
+        if (charSpaced)
+            _cntx.setLetterSpacing(v[2] + "px");
+        if (isFill) _cntx.fillText(aStr, v[0], v[1]);
+        else _cntx.strokeText(aStr, v[0], v[1]);
+        if (charSpaced)
+            _cntx.setLetterSpacing("0px");
+    }
+
+    /**
+     * Saves painter state (context is only saved natively if clip is set).
+     */
+    private void save()
+    {
+        SaveLevel saveLevel = new SaveLevel();
+        saveLevel.matrix = _matrix.clone();
+        saveLevel.clipBounds = _clipBounds.clone();
+        saveLevel.state = _state.clone();
+        saveLevel.cntxState = new HashMap<>(_cntxState);
+        _saveLevels.add(saveLevel);
+    }
+
+    /**
+     * Restores painter state.
+     */
+    private void restore()
+    {
+        // Get save level (just return if none)
+        int levelCount = _saveLevels.size();
+        if (levelCount == 0) return;
+        SaveLevel saveLevel = _saveLevels.remove(levelCount - 1);
+
+        // If context was saved natively (for clip), restore it and reset shadow state to state at native save
+        if (saveLevel.nativeSaved) {
+            _cntx.restore();
+            _cntxState = saveLevel.nativeCntxState;
+            System.arraycopy(saveLevel.nativeCntxMatrix, 0, _cntxMatrix, 0, 6);
+        }
+
+        // Restore transform, clip bounds and painter state
+        System.arraycopy(saveLevel.matrix, 0, _matrix, 0, 6);
+        System.arraycopy(saveLevel.clipBounds, 0, _clipBounds, 0, 4);
+        _state = saveLevel.state;
+
+        // Restore context state values known at save, and note if any changed value was unknown at save
+        Map<String,Object> savedState = saveLevel.cntxState;
+        boolean reapply = false;
+        Set<String> names = new HashSet<>(_cntxState.keySet());
+        names.addAll(savedState.keySet());
+        for (String name : names) {
+            if (savedState.containsKey(name)) setCntx(name, savedState.get(name));
+            else reapply = true;
+        }
+
+        // Reapply painter state for values unknown at save
+        if (reapply) {
+            applyPaint();
+            applyStroke();
+            setCntx("globalAlpha", _state.opacity);
+            if (_state.font != null) setCntx("font", _state.font);
+            setCntx("globalCompositeOperation", _state.composite);
+            setCntx("imageSmoothingEnabled", _state.imageQuality > .33);
+        }
+    }
+
+    /**
+     * Sets a context state property, if changed.
+     */
+    private void setCntx(String aName, Object aValue)
+    {
+        // If same as current value, just return
+        if (_cntxState.containsKey(aName) && Objects.deepEquals(_cntxState.get(aName), aValue)) {
+            _stateElidedCount++;
+            return;
+        }
+
+        // Set value
+        _cntx.setProperty(aName);
+        _cntxState.put(aName, aValue);
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context transform to given matrix, if changed.
+     */
+    private void setCntxTransform(double[] aMatrix)
+    {
+        if (Arrays.equals(aMatrix, _cntxMatrix))
+            return;
+        _cntx.setTransform();
+        System.arraycopy(aMatrix, 0, _cntxMatrix, 0, 6);
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context transform to current painter transform, if changed (called before any context draw or clip).
+     */
+    private void syncTransform()  { setCntxTransform(_matrix); }
+
+    /**
+     * Returns whether given rect (outset by given amount) with given matrix is completely outside the current clip.
+     */
+    private boolean isClippedOut(double aX, double aY, double aW, double aH, double anOutset, double[] aMatrix)
+    {
+        double[] devBounds = CJPainter.getDeviceBounds(aX, aY, aW, aH, anOutset, aMatrix, _devBounds);
+        if (CJPainter.isOutsideBounds(devBounds, _clipBounds)) {
+            _culledCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets the given result matrix to given matrix multiplied by given transform matrix (as context.transform()).
+     */
+    private static void multiplyMatrix(double[] aMatrix, double[] aTransMatrix, double[] theResult)
+    {
+        double a = aMatrix[0], b = aMatrix[1], c = aMatrix[2], d = aMatrix[3], e = aMatrix[4], f = aMatrix[5];
+        double[] t = aTransMatrix;
+        theResult[0] = a * t[0] + c * t[1];
+        theResult[1] = b * t[0] + d * t[1];
+        theResult[2] = a * t[2] + c * t[3];
+        theResult[3] = b * t[2] + d * t[3];
+        theResult[4] = a * t[4] + c * t[5] + e;
+        theResult[5] = b * t[4] + d * t[5] + f;
+    }
+
+    /**
+     * Returns the context composite operation for given Composite name.
+     */
+    private static String getCompositeOperation(String aName)
+    {
+        switch (aName) {
+            case "SRC_IN": return "source-in";
+            case "DST_IN": return "destination-in";
+            case "DST_OUT": return "destination-out";
+            default: return "source-over";
+        }
+    }
+
+    /**
+     * Returns the number of frames.
+     */
+    public int getFrameCount()  { return _frameCount; }
+
+    /**
+     * Returns the number of ops.
+     */
+    public int getOpCount()  { return _opCount; }
+
+    /**
+     * Returns the op counts by op name.
+     */
+    public Map<String,Integer> getOpCounts()  { return _opCounts; }
+
+    /**
+     * Returns the number of context state sets.
+     */
+    public int getStateSetCount()  { return _stateSetCount; }
+
+    /**
+     * Returns the number of context state sets elided because the value was unchanged.
+     */
+    public int getStateElidedCount()  { return _stateElidedCount; }
+
+    /**
+     * Returns the number of draw ops culled because they were outside the clip.
+     */
+    public int getCulledCount()  { return _culledCount; }
+
+    /**
+     * Returns the number of native context saves (only for clips inside a save).
+     */
+    public int getNativeSaveCount()  { return _nativeSaveCount; }
+
+    /**
+     * Returns the estimated number of bridge calls for direct painter calls (CJPainter: one per context call).
+     */
+    public long getDirectBridgeCallCount()  { return _cntx.getCallCount(); }
+
+    /**
+     * Returns the estimated number of bridge calls for stack transport (CJPainter2: one paintStacks call per frame,
+     * plus gradient/pattern creation and image handle conversion).
+     */
+    public long getStackBridgeCallCount()  { return _stackBridgeCallCount; }
+
+    /**
+     * Prints a report of counts.
+     */
+    public void printReport()
+    {
+        System.out.println("Frames: " + _frameCount);
+        System.out.println("Ops: " + _opCount);
+        System.out.println("Context calls: " + _cntx.getCallCount());
+        System.out.println("State sets: " + _stateSetCount + " (" + _stateElidedCount + " elided)");
+        System.out.println("Culled ops: " + _culledCount);
+        System.out.println("Native saves: " + _nativeSaveCount);
+        System.out.println("Bridge calls (stack transport, est.): " + getStackBridgeCallCount());
+        System.out.println("Bridge calls (direct painter, est.): " + getDirectBridgeCallCount());
+        printCounts("Ops by type:", _opCounts);
+        printCounts("Context calls by name:", _cntx.getCallCounts());
+    }
+
+    /**
+     * Prints given counts, most frequent first.
+     */
+    private static void printCounts(String aTitle, Map<String,Integer> theCounts)
+    {
+        System.out.println(aTitle);
+        List<Map.Entry<String,Integer>> counts = new ArrayList<>(theCounts.entrySet());
+        counts.sort((e1, e2) -> e2.getValue() - e1.getValue());
+        for (Map.Entry<String,Integer> entry : counts)
+            System.out.println("    " + entry.getKey() + ": " + entry.getValue());
+    }
+
+    /**
+     * Main method: Reads capture file, replays it (for optional iteration count) and prints report of last iteration.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        // Get file and iterations
+        if (args.length < 1) {
+            System.err.println("Usage: java snapcj.CJDisplayListReplay capture.scjd [iterations]");
+            return;
+        }
+        File file = new File(args[0]);
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+        // Read display lists (decode ops up front, so replay time is just replay)
+        int scale = CJDisplayList.readScale(file);
+        List<CJDisplayList> displayLists = CJDisplayList.readFile(file);
+        for (CJDisplayList displayList : displayLists)
+            displayList.getOps();
+
+        // Replay and print report
+        CJDisplayListReplay replay = null;
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            replay = new CJDisplayListReplay(scale);
+            replay.replayDisplayLists(displayLists);
+        }
+        long replayTime = (System.nanoTime() - startTime) / iterations / 1000;
+        replay.printReport();
+        System.out.println("Replay time: " + replayTime + " us per iteration");
+    }
+
+    /**
+     * A class to hold the painter state that save/restore covers.
+     */
+    private static class PainterState implements Cloneable {
+
+        // The paint type, key (context style), whether relative gradient (sized to each shape) and gradient stop count
+        byte paintType;
+        String paintKey;
+        boolean paintRelative;
+        int paintStopCount;
+
+        // The stroke, opacity, font, composite operation and image quality
+        StrokeDesc stroke;
+        double opacity = 1;
+        String font;
+        String composite = "source-over";
+        double imageQuality = .5;
+
+        /**
+         * Standard clone implementation.
+         */
+        @Override
+        protected PainterState clone()
+        {
+            try { return (PainterState) super.clone(); }
+            catch (CloneNotSupportedException e) { throw new RuntimeException(e); }
+        }
+    }
+
+    /**
+     * A class to hold painter state for save/restore.
+     */
+    private static class SaveLevel {
+
+        // The transform matrix, clip bounds, painter state and shadow context state at save
+        double[] matrix;
+        double[] clipBounds;
+        PainterState state;
+        Map<String,Object> cntxState;
+
+        // Whether context was saved natively (for clip), and the shadow context state and matrix at native save
+        boolean nativeSaved;
+        Map<String,Object> nativeCntxState;
+        double[] nativeCntxMatrix;
+    }
+
+    /**
+     * A stand-in for CanvasRenderingContext2D that records the calls made to it (by name), for headless replay.
+     */
+    public static class RecordingContext {
+
+        // The call counts by name
+        private Map<String,Integer> _callCounts = new HashMap<>();
+
+        // The total number of calls
+        private long _callCount;
+
+        /**
+         * Records a call.
+         */
+        private void addCall(String aName)
+        {
+            _callCounts.merge(aName, 1, Integer::sum);
+            _callCount++;
+        }
+
+        /**
+         * Returns the total number of calls.
+         */
+        public long getCallCount()  { return _callCount; }
+
+        /**
+         * Returns the number of calls for given name (state property sets are named "set" + property).
+         */
+        public int getCallCount(String aName)  { return _callCounts.getOrDefault(aName, 0); }
+
+        /**
+         * Returns the call counts by name.
+         */
+        public Map<String,Integer> getCallCounts()  { return _callCounts; }
+
+        /**
+         * Sets a state property (fillStyle, lineWidth, font, etc.).
+         */
+        public void setProperty(String aName)  { addCall("set" + Character.toUpperCase(aName.charAt(0)) + aName.substring(1)); }
+
+        /**
+         * Sets the transform.
+         */
+        public void setTransform()  { addCall("setTransform"); }
+
+        /**
+         * Sets the letterSpacing.
+         */
+        public void setLetterSpacing(String aValue)  { addCall("setLetterSpacing"); }
+
+        /**
+         * Saves the context.
+         */
+        public void save()  { addCall("save"); }
+
+        /**
+         * Restores the context.
+         */
+        public void restore()  { addCall("restore"); }
+
+        /**
+         * Fills a rect.
+         */
+        public void fillRect(double aX, double aY, double aW, double aH)  { addCall("fillRect"); }
+
+        /**
+         * Strokes a rect.
+         */
+        public void strokeRect(double aX, double aY, double aW, double aH)  { addCall("strokeRect"); }
+
+        /**
+         * Clears a rect.
+         */
+        public void clearRect(double aX, double aY, double aW, double aH)  { addCall("clearRect"); }
+
+        /**
+         * Fills current Path2D.
+         */
+        public void fill()  { addCall("fill"); }
+
+        /**
+         * Strokes current Path2D.
+         */
+        public void stroke()  { addCall("stroke"); }
+
+        /**
+         * Clips to current path or Path2D.
+         */
+        public void clip()  { addCall("clip"); }
+
+        /**
+         * Begins a path.
+         */
+        public void beginPath()  { addCall("beginPath"); }
+
+        /**
+         * Adds a rect to path.
+         */
+        public void rect(double aX, double aY, double aW, double aH)  { addCall("rect"); }
+
+        /**
+         * Creates a Path2D (from SVG path data).
+         */
+        public void newPath2D()  { addCall("newPath2D"); }
+
+        /**
+         * Draws an image.
+         */
+        public void drawImage()  { addCall("drawImage"); }
+
+        /**
+         * Fills text.
+         */
+        public void fillText(String aStr, double aX, double aY)  { addCall("fillText"); }
+
+        /**
+         * Strokes text.
+         */
+        public void strokeText(String aStr, double aX, double aY)  { addCall("strokeText"); }
+
+        /**
+         * Creates a linear gradient.
+         */
+        public void createLinearGradient()  { addCall("createLinearGradient"); }
+
+        /**
+         * Adds a gradient color stop.
+         */
+        public void addColorStop()  { addCall("addColorStop"); }
+
+        /**
+         * Creates a pattern.
+         */
+        public void createPattern()  { addCall("createPattern"); }
+    }
+}
@@ -8,6 +8,8 @@ import snap.geom.Shape;
 import snap.gfx.FontFile;
 import snap.util.MathUtils;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A FontFile subclass for CheerpJ.
@@ -23,6 +25,12 @@ public class CJFontFile extends FontFile {
     // The JavaScript name
     private String  _jsName;
 
+    // The JavaScript names for small font sizes (by size)
+    private String[]  _jsNames = new String[JS_NAMES_SIZE_MAX];
+
+    // The JavaScript names for larger font sizes
+    private Map<Integer,String>  _jsNamesLarge;
+
     // The PostScript/PDF name
     private String  _psName;
 
@@ -35,6 +43,9 @@ public class CJFontFile extends FontFile {
     // The RenderContext2D
     private static CanvasRenderingContext2D _cntx;
 
+    // The max font size (exclusive) for JavaScript names held in array
+    private static final int JS_NAMES_SIZE_MAX = 256;
+
     /**
      * Creates a new TVFontFile for given name.
      */
@@ -90,24 +101,51 @@ public class CJFontFile extends FontFile {
     public String getFamilyEnglish()  { return _familyName; }
 
     /**
-     * Returns the font declaration string in JavaScript format.
+     * Returns the font declaration string in JavaScript format (at measurement size 1000).
      */
     public String getJSName()
     {
         // If already set, just return
         if (_jsName != null) return _jsName;
 
-        // Create name
-        String jsName = "";
+        // Set/return
+        return _jsName = getJSName(1000);
+    }
+
+    /**
+     * Returns the font declaration string in JavaScript format for given pixel size (cached and interned).
+     */
+    public String getJSName(int aSize)
+    {
+        // Handle small sizes: Get from array
+        if (aSize >= 0 && aSize < JS_NAMES_SIZE_MAX) {
+            String jsName = _jsNames[aSize];
+            if (jsName == null)
+                jsName = _jsNames[aSize] = createJSName(aSize);
+            return jsName;
+        }
+
+        // Handle larger sizes: Get from map
+        if (_jsNamesLarge == null) _jsNamesLarge = new HashMap<>();
+        String jsName = _jsNamesLarge.get(aSize);
+        if (jsName == null)
+            _jsNamesLarge.put(aSize, jsName = createJSName(aSize));
+        return jsName;
+    }
+
+    /**
+     * Creates the font declaration string in JavaScript format for given pixel size.
+     */
+    private String createJSName(int aSize)
+    {
+        StringBuilder sb = new StringBuilder();
         if (isBold())
-            jsName += "Bold ";
+            sb.append("Bold ");
         if (isItalic())
-            jsName += "Italic ";
-        jsName += "1000px ";
-        jsName += getFamily();
-
-        // Set/return
-        return _jsName = jsName;
+            sb.append("Italic ");
+        sb.append(aSize).append("px ");
+        sb.append(getFamily());
+        return sb.toString().intern();
     }
 
     /**
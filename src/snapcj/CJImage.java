@@ -23,6 +23,9 @@ public class CJImage extends Image {
     // The canvas object
     protected HTMLCanvasElement _canvas;
 
+    // The last painter returned by getPainter() (flushed before pixels are used, since it batches rects)
+    private CJPainter _painter;
+
     /**
      * Constructor for given size.
      */
@@ -179,6 +182,9 @@ public class CJImage extends Image {
     @Override
     public int getRGB(int aX, int aY)
     {
+        // Draw pending rects of last painter
+        flushPainter();
+
         // If HTMLImageElement, convert to canvas
         if (_img != null) convertToCanvas();
 
@@ -196,6 +202,9 @@ public class CJImage extends Image {
     @Override
     public void setRGB(int aX, int aY, int rgb)
     {
+        // Draw pending rects of last painter
+        flushPainter();
+
         // If HTMLImageElement, convert to canvas
         if (_img != null) convertToCanvas();
 
@@ -219,6 +228,9 @@ public class CJImage extends Image {
      */
     protected byte[] getBytesRGBImpl()
     {
+        // Draw pending rects of last painter
+        flushPainter();
+
         // If HTMLImageElement, convert to canvas
         if (_img != null) convertToCanvas();
 
@@ -244,6 +256,9 @@ public class CJImage extends Image {
      */
     protected byte[] getBytesRGBAImpl()
     {
+        // Draw pending rects of last painter
+        flushPainter();
+
         // If HTMLImageElement, convert to canvas
         if (_img != null) convertToCanvas();
 
@@ -264,6 +279,9 @@ public class CJImage extends Image {
      */
     public byte[] getBytesJPEG()
     {
+        // Draw pending rects of last painter
+        flushPainter();
+
         // If HTMLImageElement, convert to canvas
         if (_img != null) convertToCanvas();
 
@@ -279,6 +297,9 @@ public class CJImage extends Image {
      */
     public byte[] getBytesPNG()
     {
+        // Draw pending rects of last painter
+        flushPainter();
+
         // If HTMLImageElement, convert to canvas
         if (_img != null) convertToCanvas();
 
@@ -298,8 +319,22 @@ public class CJImage extends Image {
         if (_img != null)
             convertToCanvas();
 
-        // Return painter for canvas
-        return new CJPainter(_canvas, _dpiScale);
+        // Draw pending rects of last painter
+        flushPainter();
+
+        // Create painter for canvas with rect batching (flushed before pixels are used) and return
+        _painter = new CJPainter(_canvas, _dpiScale);
+        _painter.setRectBatchingEnabled(true);
+        return _painter;
+    }
+
+    /**
+     * Draws any pending batched rects of last painter, so canvas pixels are current.
+     */
+    protected void flushPainter()
+    {
+        if (_painter != null)
+            _painter.flush();
     }
 
     /**
@@ -309,6 +344,7 @@ public class CJImage extends Image {
     {
         if (_img != null)
             convertToCanvas();
+        flushPainter();
         return _canvas;
     }
 
@@ -350,6 +386,9 @@ public class CJImage extends Image {
      */
     public void blur(int aRad, Color aColor)
     {
+        // Draw pending rects of last painter
+        flushPainter();
+
         // If HTMLImageElement, convert to canvas
         if (_img != null)
             convertToCanvas();
@@ -361,14 +400,10 @@ public class CJImage extends Image {
         canvas.getStyle().setProperty("width", (_pixW / _dpiScale) + "px");
         canvas.getStyle().setProperty("height", (_pixH / _dpiScale) + "px");
 
-        // Paint image into new canvas with ShadowBlur, offset so that only shadow appears
+        // Paint image into new canvas with ShadowBlur, offset so that only shadow appears (image is drawn off canvas)
         CJPainter pntr = new CJPainter(canvas, _dpiScale);
-        pntr._cntx.setShadowBlur(aRad * _dpiScale);
-        if (aColor != null)
-            pntr._cntx.setShadowColor(CJ.getColorJS(aColor));
-        else pntr._cntx.setShadowColor("gray");
-        pntr._cntx.setShadowOffsetX(-_pixW);
-        pntr._cntx.setShadowOffsetY(-_pixH);
+        String shadowColor = aColor != null ? CJ.getColorJS(aColor) : "gray";
+        pntr.setShadow(aRad * _dpiScale, shadowColor, -_pixW, -_pixH);
         pntr.drawImage(this, getWidth(), getHeight());
 
         _canvas = canvas;
@@ -407,6 +442,7 @@ public class CJImage extends Image {
      */
     public CanvasImageSource getNative()
     {
+        flushPainter();
         return _img != null ? _img : _canvas;
     }
 }
\ No newline at end of file
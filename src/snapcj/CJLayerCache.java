@@ -0,0 +1,468 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import snap.geom.Point;
+import snap.geom.Rect;
+import snap.gfx.Painter;
+import snap.props.PropChange;
+import snap.props.PropChangeListener;
+import snap.view.ParentView;
+import snap.view.View;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * This class manages retained layers for a CJWindow: Views marked cacheable are painted into their own offscreen
+ * canvas when their content revision changes, and window paints blit that canvas and paint only the parts of the dirty
+ * rect outside layers (as rect clips, so the view updater skips the cached subtrees as outside the clip).
+ *
+ * Invalidation is view-driven: A layer's revision changes when the view or any descendant fires a prop change, when
+ * its window bounds (including ancestor scale) or combined ancestor opacity change, or when invalidated explicitly
+ * with invalidateLayer(). Window dirty rects don't invalidate layers (the window only gets the merged rect, not the
+ * views that asked for it), so views that change their painting without firing a prop change (such as a blinking
+ * caret) should call invalidateLayer() or not be cached. Cached views should be opaque, not overlapped by other views
+ * in the same window and not contain overlays, since content behind, above or in them isn't painted while blitted.
+ *
+ * Layer images are released when their view stops showing and when the window is hidden.
+ */
+public class CJLayerCache {
+
+    // The window
+    private CJWindow _window;
+
+    // The layers
+    private List<Layer> _layers = new ArrayList<>();
+
+    // The listener for cached view (and descendant) prop changes
+    private PropChangeListener _viewLsnr = this::handleViewPropChange;
+
+    // The number of layer blits and layer renders
+    private int _blitCount, _renderCount;
+
+    // The use counter (for LRU)
+    private static long _useCount;
+
+    // The layers with images for all windows (for global memory cap - layers are removed when images are released)
+    private static List<Layer> _imageLayers = new ArrayList<>();
+
+    // The total bytes of layer images for all windows
+    private static long _totalBytes;
+
+    // The max total bytes of layer images for all windows
+    private static long _maxTotalBytes = DEFAULT_MAX_TOTAL_BYTES;
+
+    // The default max total bytes of layer images (32 MB)
+    public static final long DEFAULT_MAX_TOTAL_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Constructor for given window.
+     */
+    public CJLayerCache(CJWindow aWindow)
+    {
+        _window = aWindow;
+    }
+
+    /**
+     * Returns whether given view is cached in a retained layer.
+     */
+    public boolean isViewCached(View aView)  { return getLayer(aView) != null; }
+
+    /**
+     * Sets whether given view is cached in a retained layer.
+     */
+    public void setViewCached(View aView, boolean aValue)
+    {
+        // If already set, just return
+        Layer layer = getLayer(aView);
+        if (aValue == (layer != null)) return;
+
+        // Add layer and start listening to view and descendants
+        if (aValue) {
+            _layers.add(new Layer(aView));
+            addViewListener(aView);
+        }
+
+        // Remove layer and stop listening
+        else {
+            layer.releaseImage();
+            _layers.remove(layer);
+            removeViewListener(aView);
+        }
+    }
+
+    /**
+     * Marks layer for given view as needing to be repainted.
+     */
+    public void invalidateLayer(View aView)
+    {
+        Layer layer = getLayer(aView);
+        if (layer != null)
+            layer._revision++;
+    }
+
+    /**
+     * Marks all layers as needing to be repainted.
+     */
+    public void invalidateAll()
+    {
+        for (Layer layer : _layers)
+            layer._revision++;
+    }
+
+    /**
+     * Releases all layer images (when window is hidden). Layers are rendered again on next paint.
+     */
+    public void releaseImages()
+    {
+        for (Layer layer : _layers)
+            layer.releaseImage();
+    }
+
+    /**
+     * Returns whether there are any layers.
+     */
+    public boolean hasLayers()  { return _layers.size() > 0; }
+
+    /**
+     * Returns the number of layer blits.
+     */
+    public int getBlitCount()  { return _blitCount; }
+
+    /**
+     * Returns the number of layer renders.
+     */
+    public int getRenderCount()  { return _renderCount; }
+
+    /**
+     * Returns the bytes of layer image for given view (0 if not cached or not rendered).
+     */
+    public long getLayerBytes(View aView)
+    {
+        Layer layer = getLayer(aView);
+        return layer != null ? layer._byteCount : 0;
+    }
+
+    /**
+     * Returns the total bytes of layer images for all windows.
+     */
+    public static long getTotalBytes()  { return _totalBytes; }
+
+    /**
+     * Returns the max total bytes of layer images for all windows.
+     */
+    public static long getMaxTotalBytes()  { return _maxTotalBytes; }
+
+    /**
+     * Sets the max total bytes of layer images for all windows.
+     */
+    public static void setMaxTotalBytes(long aValue)
+    {
+        _maxTotalBytes = aValue;
+        evictToBudget(null);
+    }
+
+    /**
+     * Paints views for given dirty rect with given painter: Renders stale layers in rect, blits them and paints views
+     * in the parts of rect outside them (given paint function is called for each part). Painter is flushed.
+     */
+    public void paintViews(Painter aPntr, Rect aRect, Consumer<Rect> aPaintViews)
+    {
+        // Update layers for current bounds, render stale layers in rect and get layers to blit
+        List<Layer> blitLayers = new ArrayList<>();
+        List<Rect> blitBounds = new ArrayList<>();
+        for (Layer layer : _layers) {
+            layer.updateBounds();
+            if (layer._bounds == null || !layer._bounds.intersectsRect(aRect))
+                continue;
+            if (!layer.isCurrent())
+                layer.render();
+            if (layer.isCurrent()) {
+                blitLayers.add(layer);
+                blitBounds.add(layer._bounds);
+            }
+        }
+
+        // If no layers to blit, paint normally
+        if (blitLayers.isEmpty())
+            aPaintViews.accept(aRect);
+
+        // Otherwise, paint views in each part of rect outside layers, then blit layers
+        else {
+            for (Rect rect : getRectsExcluding(aRect, blitBounds)) {
+                aPntr.save();
+                aPntr.clip(rect);
+                aPaintViews.accept(rect);
+                aPntr.restore();
+            }
+
+            // Blit layers
+            aPntr.save();
+            aPntr.clip(aRect);
+            for (Layer layer : blitLayers) {
+                Rect bounds = layer._bounds;
+                aPntr.drawImage(layer._image, bounds.x, bounds.y, bounds.width, bounds.height);
+                layer._lastUse = ++_useCount;
+                _blitCount++;
+            }
+            aPntr.restore();
+        }
+
+        // Flush painter
+        aPntr.flush();
+    }
+
+    /**
+     * Returns the parts of given rect outside given hole rects (as non-overlapping rects: bands above and below each
+     * hole, and pieces left and right of it).
+     */
+    static List<Rect> getRectsExcluding(Rect aRect, List<Rect> theHoles)
+    {
+        List<Rect> rects = new ArrayList<>();
+        rects.add(aRect);
+
+        // Iterate over holes and split each rect that overlaps hole
+        for (Rect hole : theHoles) {
+            List<Rect> rects2 = new ArrayList<>();
+            for (Rect rect : rects) {
+
+                // Get overlap of rect and hole (if none, keep rect)
+                double x = rect.x, y = rect.y, maxX = rect.getMaxX(), maxY = rect.getMaxY();
+                double holeX = Math.max(hole.x, x), holeY = Math.max(hole.y, y);
+                double holeMaxX = Math.min(hole.getMaxX(), maxX), holeMaxY = Math.min(hole.getMaxY(), maxY);
+                if (holeMaxX <= holeX || holeMaxY <= holeY) {
+                    rects2.add(rect);
+                    continue;
+                }
+
+                // Add parts above, below, left and right of overlap
+                if (holeY > y) rects2.add(new Rect(x, y, maxX - x, holeY - y));
+                if (holeMaxY < maxY) rects2.add(new Rect(x, holeMaxY, maxX - x, maxY - holeMaxY));
+                if (holeX > x) rects2.add(new Rect(x, holeY, holeX - x, holeMaxY - holeY));
+                if (holeMaxX < maxX) rects2.add(new Rect(holeMaxX, holeY, maxX - holeMaxX, holeMaxY - holeY));
+            }
+            rects = rects2;
+        }
+
+        // Return rects
+        return rects;
+    }
+
+    /**
+     * Returns the layer for given view.
+     */
+    private Layer getLayer(View aView)
+    {
+        for (Layer layer : _layers)
+            if (layer._view == aView)
+                return layer;
+        return null;
+    }
+
+    /**
+     * Adds the view listener to given view and descendants.
+     */
+    private void addViewListener(View aView)
+    {
+        aView.addPropChangeListener(_viewLsnr);
+        if (aView instanceof ParentView)
+            for (View child : ((ParentView) aView).getChildren())
+                addViewListener(child);
+    }
+
+    /**
+     * Removes the view listener from given view and descendants.
+     */
+    private void removeViewListener(View aView)
+    {
+        aView.removePropChangeListener(_viewLsnr);
+        if (aView instanceof ParentView)
+            for (View child : ((ParentView) aView).getChildren())
+                removeViewListener(child);
+    }
+
+    /**
+     * Called when cached view or descendant has prop change: Invalidates layer (and listens to added children).
+     */
+    private void handleViewPropChange(PropChange aPC)
+    {
+        // If child added/removed, update listener
+        if (aPC.getPropName() == ParentView.Child_Prop) {
+            if (aPC.getNewValue() instanceof View)
+                addViewListener((View) aPC.getNewValue());
+            else if (aPC.getOldValue() instanceof View)
+                removeViewListener((View) aPC.getOldValue());
+        }
+
+        // Invalidate layer for cached ancestor of source view
+        for (View view = (View) aPC.getSource(); view != null; view = view.getParent()) {
+            Layer layer = getLayer(view);
+            if (layer != null) {
+                layer._revision++;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Removes least recently used layer images (for all windows) until total bytes are within budget.
+     */
+    private static void evictToBudget(Layer aLayerToKeep)
+    {
+        while (_totalBytes > _maxTotalBytes) {
+
+            // Get least recently used layer with image
+            Layer lruLayer = null;
+            for (Layer layer : _imageLayers)
+                if (layer != aLayerToKeep && (lruLayer == null || layer._lastUse < lruLayer._lastUse))
+                    lruLayer = layer;
+
+            // Release image
+            if (lruLayer == null) break;
+            lruLayer.releaseImage();
+        }
+    }
+
+    /**
+     * A class to hold a retained layer for a view.
+     */
+    private class Layer {
+
+        // The view
+        private View _view;
+
+        // The bounds of view in window (rounded out to whole points)
+        private Rect _bounds;
+
+        // The content revision and the revision of image
+        private int _revision = 1, _imageRevision;
+
+        // The combined opacity of view and ancestors when last checked
+        private double _opacity = 1;
+
+        // The layer image
+        private CJImage _image;
+
+        // The bytes of image
+        private long _byteCount;
+
+        // The use counter value of last use
+        private long _lastUse;
+
+        /**
+         * Constructor.
+         */
+        private Layer(View aView)
+        {
+            _view = aView;
+        }
+
+        /**
+         * Updates bounds for current view geometry, invalidating layer if bounds or combined opacity changed (and
+         * releasing image if view isn't showing).
+         */
+        private void updateBounds()
+        {
+            // If view not showing, release image and return
+            if (!_view.isShowing()) {
+                _bounds = null;
+                releaseImage();
+                return;
+            }
+
+            // Get view corners in window - if rotated or skewed, bounds would include other content, so invalidate
+            // and return
+            View rootView = _window._rootView;
+            double viewW = _view.getWidth(), viewH = _view.getHeight();
+            Point p0 = _view.localToParent(0, 0, rootView), p1 = _view.localToParent(viewW, 0, rootView);
+            Point p2 = _view.localToParent(viewW, viewH, rootView), p3 = _view.localToParent(0, viewH, rootView);
+            if (p1.y != p0.y || p3.x != p0.x) {
+                _bounds = null;
+                _revision++;
+                return;
+            }
+
+            // Get bounds in window from corners (rounded out, includes ancestor scale) - if changed, invalidate
+            double viewX = Math.floor(Math.min(Math.min(p0.x, p1.x), Math.min(p2.x, p3.x)));
+            double viewY = Math.floor(Math.min(Math.min(p0.y, p1.y), Math.min(p2.y, p3.y)));
+            double viewMaxX = Math.ceil(Math.max(Math.max(p0.x, p1.x), Math.max(p2.x, p3.x)));
+            double viewMaxY = Math.ceil(Math.max(Math.max(p0.y, p1.y), Math.max(p2.y, p3.y)));
+            Rect bounds = new Rect(viewX, viewY, viewMaxX - viewX, viewMaxY - viewY);
+            if (!bounds.equals(_bounds)) {
+                _bounds = bounds;
+                _revision++;
+            }
+
+            // If combined opacity of view and ancestors changed, invalidate
+            double opacity = 1;
+            for (View view = _view; view != null; view = view.getParent())
+                opacity *= view.getOpacity();
+            if (opacity != _opacity) {
+                _opacity = opacity;
+                _revision++;
+            }
+        }
+
+        /**
+         * Returns whether layer image is current and can be blitted.
+         */
+        private boolean isCurrent()
+        {
+            return _image != null && _imageRevision == _revision && _bounds != null;
+        }
+
+        /**
+         * Paints view into layer image (offscreen, so view needn't be in window canvas or dirty rect).
+         */
+        private void render()
+        {
+            // If bounds empty, just return
+            Rect bounds = _bounds;
+            if (bounds.isEmpty()) return;
+
+            // If image missing or wrong size, create new image and update memory accounting
+            int scale = CJWindow.PIXEL_SCALE;
+            if (_image == null || _image.getWidth() != bounds.width || _image.getHeight() != bounds.height) {
+                releaseImage();
+                _image = new CJImage(bounds.width, bounds.height, true, scale);
+                _byteCount = (long) (bounds.width * scale) * (long) (bounds.height * scale) * 4;
+                _totalBytes += _byteCount;
+                _imageLayers.add(this);
+            }
+
+            // Paint view with its transform to window, offset to layer origin
+            Painter pntr = _image.getPainter();
+            pntr.clearRect(0, 0, bounds.width, bounds.height);
+            pntr.save();
+            pntr.translate(-bounds.x, -bounds.y);
+            pntr.transform(_view.getLocalToParent(_window._rootView));
+            _view.paintAll(pntr);
+            pntr.restore();
+            pntr.flush();
+
+            // Update revision, use and count
+            _imageRevision = _revision;
+            _lastUse = ++_useCount;
+            _renderCount++;
+
+            // Evict other layer images if over budget
+            evictToBudget(this);
+            if (_totalBytes > _maxTotalBytes)
+                releaseImage();
+        }
+
+        /**
+         * Releases layer image and updates memory accounting.
+         */
+        private void releaseImage()
+        {
+            if (_image == null) return;
+            _image = null;
+            _totalBytes -= _byteCount;
+            _byteCount = 0;
+            _imageRevision = 0;
+            _imageLayers.remove(this);
+        }
+    }
+}
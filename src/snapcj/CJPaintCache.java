@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import snap.geom.Rect;
+import snap.gfx.Color;
+import snap.gfx.GradientPaint;
+import snap.gfx.Image;
+import snap.gfx.ImagePaint;
+import webapi.*;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class caches CanvasGradient and CanvasPattern objects, keyed by paint value (gradient end points and stops,
+ * pattern image and target rect for gradients sized to shapes), so fills with equal paints reuse native objects even
+ * when paints are recreated each paint. Entries are evicted least-recently-used once the cache holds more than max
+ * entries. Patterns for canvas-backed images aren't cached, since the source canvas can be redrawn.
+ *
+ * Gradients and patterns can be used by any canvas context, so painters normally use the shared cache, which lives
+ * as long as the app instead of one painter.
+ */
+public class CJPaintCache {
+
+    // The RenderContext2D used to create gradients and patterns (created on demand for shared cache)
+    private CanvasRenderingContext2D _cntx;
+
+    // The max number of entries
+    private int _maxEntries = DEFAULT_MAX_ENTRIES;
+
+    // The map of paint keys to native objects (CanvasGradient, CanvasPattern or sized GradientPaint)
+    private Map<PaintKey, Object> _entries = new LinkedHashMap<PaintKey, Object>(16, .75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<PaintKey, Object> anEntry)  { return size() > _maxEntries; }
+    };
+
+    // A reusable key for lookups
+    private PaintKey _lookupKey = new PaintKey();
+
+    // The number of cache hits and misses
+    private int _hitCount, _missCount;
+
+    // The default max number of entries
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    // The shared cache
+    private static CJPaintCache _shared;
+
+    /**
+     * Constructor (creates gradients and patterns with own offscreen context).
+     */
+    public CJPaintCache()  { }
+
+    /**
+     * Constructor for given rendering context.
+     */
+    public CJPaintCache(CanvasRenderingContext2D aCntx)
+    {
+        _cntx = aCntx;
+    }
+
+    /**
+     * Returns the context used to create gradients and patterns.
+     */
+    private CanvasRenderingContext2D getContext()
+    {
+        if (_cntx != null) return _cntx;
+        HTMLCanvasElement canvas = (HTMLCanvasElement) HTMLDocument.getDocument().createElement("canvas");
+        return _cntx = (CanvasRenderingContext2D) canvas.getContext("2d");
+    }
+
+    /**
+     * Returns the max number of entries.
+     */
+    public int getMaxEntries()  { return _maxEntries; }
+
+    /**
+     * Sets the max number of entries.
+     */
+    public void setMaxEntries(int aValue)  { _maxEntries = aValue; }
+
+    /**
+     * Returns the number of cache hits.
+     */
+    public int getHitCount()  { return _hitCount; }
+
+    /**
+     * Returns the number of cache misses.
+     */
+    public int getMissCount()  { return _missCount; }
+
+    /**
+     * Returns the CanvasGradient for given gradient paint.
+     */
+    public CanvasGradient getGradient(GradientPaint aPaint)
+    {
+        CanvasGradient canvasGradient = (CanvasGradient) getEntry(aPaint, null);
+        if (canvasGradient == null) {
+            canvasGradient = CJ.getGradientJS(aPaint, getContext());
+            addEntry(aPaint, null, canvasGradient);
+        }
+        return canvasGradient;
+    }
+
+    /**
+     * Returns the CanvasPattern for given image paint. Patterns for canvas-backed images (which can be redrawn) and
+     * for images still loading aren't cached, since the pattern would go stale.
+     */
+    public CanvasPattern getPattern(ImagePaint aPaint)
+    {
+        // If image is mutable or not loaded, just return new pattern
+        Image image = aPaint.getImage();
+        if (image.getNative() instanceof HTMLCanvasElement || !image.isLoaded()) {
+            _missCount++;
+            return CJ.getTextureJS(aPaint, getContext());
+        }
+
+        // Get cached pattern (create and add if missing)
+        CanvasPattern canvasPattern = (CanvasPattern) getEntry(aPaint, null);
+        if (canvasPattern == null) {
+            canvasPattern = CJ.getTextureJS(aPaint, getContext());
+            addEntry(aPaint, null, canvasPattern);
+        }
+        return canvasPattern;
+    }
+
+    /**
+     * Returns the given relative gradient paint sized to given rect (the same copy for same paint and rect).
+     */
+    public GradientPaint getGradientForRect(GradientPaint aPaint, Rect aRect)
+    {
+        GradientPaint gradientPaint = (GradientPaint) getEntry(aPaint, aRect);
+        if (gradientPaint == null) {
+            gradientPaint = aPaint.copyForRect(aRect);
+            addEntry(aPaint, aRect, gradientPaint);
+        }
+        return gradientPaint;
+    }
+
+    /**
+     * Returns the entry for given paint and rect.
+     */
+    private Object getEntry(Object aPaint, Rect aRect)
+    {
+        Object entry = _entries.get(_lookupKey.set(aPaint, aRect));
+        _lookupKey.clear();
+        if (entry != null) _hitCount++;
+        else _missCount++;
+        return entry;
+    }
+
+    /**
+     * Adds an entry for given paint and rect.
+     */
+    private void addEntry(Object aPaint, Rect aRect, Object anEntry)
+    {
+        PaintKey key = new PaintKey().set(aPaint, aRect);
+        _entries.put(key, anEntry);
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear()
+    {
+        _entries.clear();
+    }
+
+    /**
+     * Returns the shared paint cache.
+     */
+    public static CJPaintCache getShared()
+    {
+        if (_shared != null) return _shared;
+        return _shared = new CJPaintCache();
+    }
+
+    /**
+     * A key for a paint by value: Gradient end points and stops, or pattern image and image native (by identity),
+     * plus optional rect.
+     */
+    private static class PaintKey {
+
+        // The key type
+        private int _type;
+
+        // The image and image native (for image paint)
+        private Object _image, _imageNative;
+
+        // The values (gradient end points, stop count, stop offsets and colors, then rect if provided)
+        private double[] _values = new double[16];
+        private int _valueCount;
+
+        // The hash
+        private int _hash;
+
+        // Constants for key types
+        private static final int GRADIENT = 1;
+        private static final int IMAGE = 2;
+
+        /**
+         * Sets the key values.
+         */
+        private PaintKey set(Object aPaint, Rect aRect)
+        {
+            _valueCount = 0;
+
+            // Handle GradientPaint: Add end points and stops
+            if (aPaint instanceof GradientPaint) {
+                GradientPaint gradientPaint = (GradientPaint) aPaint;
+                _type = GRADIENT;
+                _image = _imageNative = null;
+                addValue(gradientPaint.getStartX()); addValue(gradientPaint.getStartY());
+                addValue(gradientPaint.getEndX()); addValue(gradientPaint.getEndY());
+                int stopCount = gradientPaint.getStopCount();
+                addValue(stopCount);
+                for (int i = 0; i < stopCount; i++) {
+                    Color color = gradientPaint.getStopColor(i);
+                    addValue(gradientPaint.getStopOffset(i));
+                    addValue(color.getAlphaInt() << 24 | color.getRedInt() << 16 | color.getGreenInt() << 8 | color.getBlueInt());
+                }
+            }
+
+            // Handle ImagePaint: Set image and native (pattern only depends on image pixels)
+            else {
+                Image image = ((ImagePaint) aPaint).getImage();
+                _type = IMAGE;
+                _image = image;
+                _imageNative = image.getNative();
+            }
+
+            // Add rect values
+            if (aRect != null) {
+                addValue(aRect.x); addValue(aRect.y);
+                addValue(aRect.width); addValue(aRect.height);
+            }
+
+            // Update hash and return
+            int hash = _type * 31 + System.identityHashCode(_image);
+            hash = hash * 31 + System.identityHashCode(_imageNative);
+            for (int i = 0; i < _valueCount; i++)
+                hash = hash * 31 + Double.hashCode(_values[i]);
+            _hash = hash;
+            return this;
+        }
+
+        /**
+         * Adds a value.
+         */
+        private void addValue(double aValue)
+        {
+            if (_valueCount == _values.length)
+                _values = Arrays.copyOf(_values, _values.length * 2);
+            _values[_valueCount++] = aValue;
+        }
+
+        /**
+         * Clears object references (so reusable lookup key doesn't hold last image).
+         */
+        private void clear()
+        {
+            _image = _imageNative = null;
+        }
+
+        /**
+         * Standard equals implementation.
+         */
+        @Override
+        public boolean equals(Object anObj)
+        {
+            if (anObj == this) return true;
+            if (!(anObj instanceof PaintKey)) return false;
+            PaintKey other = (PaintKey) anObj;
+            return other._hash == _hash && other._type == _type && other._image == _image &&
+                other._imageNative == _imageNative && other._valueCount == _valueCount &&
+                Arrays.equals(other._values, 0, _valueCount, _values, 0, _valueCount);
+        }
+
+        /**
+         * Standard hashCode implementation.
+         */
+        @Override
+        public int hashCode()  { return _hash; }
+    }
+}
@@ -5,9 +5,17 @@ import snap.geom.Shape;
 import snap.geom.Transform;
 import snap.gfx.*;
 import webapi.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * A snap Painter for rendering to a CheerpJ HTMLCanvasElement.
+ *
+ * Painting directly with this class (image painters from CJImage.getPainter() and CJRenderer frames) skips redundant
+ * context state sets, tracks transform and clip in Java, culls draws outside the clip, batches rect runs and reuses
+ * cached Path2D objects. Window painting records with CJPainter2 and replays in JavaScript with paintStacks(), so
+ * only the shared paint cache applies there.
  */
 public class CJPainter extends PainterImpl {
 
@@ -20,6 +28,78 @@ public class CJPainter extends PainterImpl {
     // The RenderContext2D
     protected CanvasRenderingContext2D _cntx;
 
+    // The window being painted (null if painting image)
+    protected CJWindow _window;
+
+    // A shadow copy of the context state (to skip redundant sets)
+    private CntxState _cntxState = new CntxState();
+
+    // The stack of save levels for save/restore
+    private List<SaveLevel> _saveLevels = new ArrayList<>();
+
+    // The current transform matrix (context values, with dpi scale) and the matrix last set in context
+    private double[] _matrix = { 1, 0, 0, 1, 0, 0 };
+    private double[] _cntxMatrix = { 1, 0, 0, 1, 0, 0 };
+
+    // The number of native context save/restore pairs issued
+    private int _nativeSaveCount;
+
+    // A reusable matrix for drawImage with transform
+    private double[] _imageMatrix = new double[6];
+
+    // The current clip bounds in canvas pixels (minX, minY, maxX, maxY) and reusable bounds array
+    private double[] _clipBounds = new double[4];
+    private double[] _devBounds = new double[4];
+
+    // The number of draw operations culled because they were outside the clip
+    private int _culledCount;
+
+    // Whether a shadow (blur or offset) is set in context (shadows can paint outside draw bounds, so no culling)
+    private boolean _shadowSet;
+
+    // The number of context state sets issued and elided (since last reset)
+    private int _stateSetCount, _stateElidedCount;
+
+    // The Path2D cache for complex shapes
+    private CJPathCache _pathCache = CJPathCache.getShared();
+
+    // Points array for path iteration
+    private double[] _pnts = new double[6];
+
+    // The CanvasGradient/CanvasPattern cache
+    private CJPaintCache _paintCache = CJPaintCache.getShared();
+
+    // Whether canvas context supports letterSpacing (for char spaced text)
+    private static Boolean _letterSpacingSupported;
+
+    // Cached strings for basic range chars (for char spaced text)
+    private static String[] _charStrings = new String[256];
+
+    // Whether to batch consecutive same-state rect fills/strokes into a single path
+    private boolean _rectBatchingEnabled;
+
+    // The pending batch rects (x, y, w, h), count and type (fill or stroke)
+    private double[] _rects = new double[64 * 4];
+    private int _rectCount;
+    private int _rectBatchType;
+
+    // The pixel bounds (minX, minY, maxX, maxY) of pending batch rects and of the whole batch
+    private double[] _rectPixBounds = new double[64 * 4];
+    private double[] _batchPixBounds = new double[4];
+
+    // The number of rects drawn in batches and the number of batches
+    private int _batchedRectCount, _rectBatchCount;
+
+    // The buffer for batch rect SVG path data
+    private StringBuilder _rectPathData;
+
+    // Constants for rect batch types
+    private static final int RECT_BATCH_FILL = 1;
+    private static final int RECT_BATCH_STROKE = 2;
+
+    // The max number of rects in a batch (overlap check is linear in batch size)
+    private static final int RECT_BATCH_MAX = 256;
+
     /**
      * Constructor for given canvas.
      */
@@ -34,37 +114,55 @@ public class CJPainter extends PainterImpl {
         // Clip to canvas bounds
         int canvasW = _canvas.getWidth();
         int canvasH = _canvas.getHeight();
+        _clipBounds[2] = canvasW;
+        _clipBounds[3] = canvasH;
         clipRect(0, 0, canvasW, canvasH);
 
         // If hidpi, scale default transform
         if (_scale > 1)
-            _cntx.scale(_scale, _scale);
+            _matrix[0] = _matrix[3] = _scale;
     }
 
+    /**
+     * Returns the window being painted (null if painting image).
+     */
+    public CJWindow getWindow()  { return _window; }
+
     /**
      * Sets the paint in painter.
      */
     public void setPaint(Paint aPaint)
     {
+        // If paint changed, flush pending rects
+        if (_rectCount > 0 && (aPaint == null || !aPaint.equals(getPaint())))
+            flushRects();
+
         super.setPaint(aPaint);
+        applyPaint(aPaint);
+    }
 
+    /**
+     * Sets the context fill/stroke styles for given paint.
+     */
+    private void applyPaint(Paint aPaint)
+    {
         // Handle Color
         if (aPaint instanceof Color) {
             String cstr = CJ.getColorJS((Color) aPaint);
-            _cntx.setFillStyle(cstr);
-            _cntx.setStrokeStyle(cstr);
+            setCntxFillStyle(cstr);
+            setCntxStrokeStyle(cstr);
         }
 
         // Handle ImagePaint
         else if (aPaint instanceof ImagePaint) {
-            CanvasPattern canvasPattern = CJ.getTextureJS((ImagePaint) aPaint, _cntx);
-            _cntx.setFillStyle(canvasPattern);
+            CanvasPattern canvasPattern = _paintCache.getPattern((ImagePaint) aPaint);
+            setCntxFillStyle(canvasPattern);
         }
 
         // Handle Gradient
         else if (aPaint instanceof GradientPaint) {
-            CanvasGradient canvasGradient = CJ.getGradientJS((GradientPaint) aPaint, _cntx);
-            _cntx.setFillStyle(canvasGradient);
+            CanvasGradient canvasGradient = _paintCache.getGradient((GradientPaint) aPaint);
+            setCntxFillStyle(canvasGradient);
         }
     }
 
@@ -73,37 +171,41 @@ public class CJPainter extends PainterImpl {
      */
     public void setStroke(Stroke aStroke)
     {
+        flushRects();
+
         // Let's be nice and map null to reasonable default
         if (aStroke == null) aStroke = Stroke.Stroke1;
 
         // Do normal version
         super.setStroke(aStroke);
+        applyStroke(aStroke);
+    }
 
-        // Set LineWidth
-        _cntx.setLineWidth(aStroke.getWidth());
-
-        // Set DashArray null:, DashOffset
-        double[] dashArray = aStroke.getDashArray();
-        _cntx.setLineDash(dashArray);
-
-        // Set DashOffset
-        _cntx.setLineDashOffset(aStroke.getDashOffset());
+    /**
+     * Sets the context line properties for given stroke.
+     */
+    private void applyStroke(Stroke aStroke)
+    {
+        // Set LineWidth, DashArray (can be null) and DashOffset
+        setCntxLineWidth(aStroke.getWidth());
+        setCntxLineDash(aStroke.getDashArray());
+        setCntxLineDashOffset(aStroke.getDashOffset());
 
         // Set cap
         switch (aStroke.getCap()) {
-            case Round: _cntx.setLineCap("round"); break;
-            case Butt: _cntx.setLineCap("butt"); break;
-            case Square: _cntx.setLineCap("square"); break;
+            case Round: setCntxLineCap("round"); break;
+            case Butt: setCntxLineCap("butt"); break;
+            case Square: setCntxLineCap("square"); break;
         }
 
         // Set join
         switch (aStroke.getJoin()) {
             case Miter:
-                _cntx.setLineJoin("miter");
-                _cntx.setMiterLimit(aStroke.getMiterLimit());
+                setCntxLineJoin("miter");
+                setCntxMiterLimit(aStroke.getMiterLimit());
                 break;
-            case Round: _cntx.setLineJoin("round"); break;
-            case Bevel: _cntx.setLineJoin("bevel"); break;
+            case Round: setCntxLineJoin("round"); break;
+            case Bevel: setCntxLineJoin("bevel"); break;
         }
     }
 
@@ -112,8 +214,9 @@ public class CJPainter extends PainterImpl {
      */
     public void setOpacity(double aValue)
     {
+        flushRects();
         super.setOpacity(aValue);
-        _cntx.setGlobalAlpha(aValue);
+        setCntxGlobalAlpha(aValue);
     }
 
     /**
@@ -121,8 +224,301 @@ public class CJPainter extends PainterImpl {
      */
     public void setFont(Font aFont)
     {
+        flushRects();
         super.setFont(aFont);
-        _cntx.setFont(CJ.getFontJS(aFont));
+        setCntxFont(CJ.getFontJS(aFont));
+    }
+
+    /**
+     * Sets the context fill style (color string, CanvasPattern or CanvasGradient), if changed.
+     */
+    private void setCntxFillStyle(Object aStyle)
+    {
+        // If same as current style, just return
+        if (isSameStyle(aStyle, _cntxState.fillStyle)) {
+            _stateElidedCount++;
+            return;
+        }
+
+        // Set style
+        if (aStyle instanceof String)
+            _cntx.setFillStyle((String) aStyle);
+        else if (aStyle instanceof CanvasPattern)
+            _cntx.setFillStyle((CanvasPattern) aStyle);
+        else _cntx.setFillStyle((CanvasGradient) aStyle);
+        _cntxState.fillStyle = aStyle;
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context stroke style color string, if changed.
+     */
+    private void setCntxStrokeStyle(String aStyle)
+    {
+        if (isSameStyle(aStyle, _cntxState.strokeStyle)) {
+            _stateElidedCount++;
+            return;
+        }
+        _cntx.setStrokeStyle(aStyle);
+        _cntxState.strokeStyle = aStyle;
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context line width, if changed.
+     */
+    private void setCntxLineWidth(double aValue)
+    {
+        if (aValue == _cntxState.lineWidth) {
+            _stateElidedCount++;
+            return;
+        }
+        _cntx.setLineWidth(_cntxState.lineWidth = aValue);
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context line dash (can be null), if changed.
+     */
+    private void setCntxLineDash(double[] aDashArray)
+    {
+        if (_cntxState.lineDashKnown && Arrays.equals(aDashArray, _cntxState.lineDash)) {
+            _stateElidedCount++;
+            return;
+        }
+        _cntx.setLineDash(aDashArray);
+        _cntxState.lineDash = aDashArray;
+        _cntxState.lineDashKnown = true;
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context line dash offset, if changed.
+     */
+    private void setCntxLineDashOffset(double aValue)
+    {
+        if (aValue == _cntxState.lineDashOffset) {
+            _stateElidedCount++;
+            return;
+        }
+        _cntx.setLineDashOffset(_cntxState.lineDashOffset = aValue);
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context line cap, if changed.
+     */
+    private void setCntxLineCap(String aValue)
+    {
+        if (isSameString(aValue, _cntxState.lineCap)) {
+            _stateElidedCount++;
+            return;
+        }
+        _cntx.setLineCap(_cntxState.lineCap = aValue);
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context line join, if changed.
+     */
+    private void setCntxLineJoin(String aValue)
+    {
+        if (isSameString(aValue, _cntxState.lineJoin)) {
+            _stateElidedCount++;
+            return;
+        }
+        _cntx.setLineJoin(_cntxState.lineJoin = aValue);
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context miter limit, if changed.
+     */
+    private void setCntxMiterLimit(double aValue)
+    {
+        if (aValue == _cntxState.miterLimit) {
+            _stateElidedCount++;
+            return;
+        }
+        _cntx.setMiterLimit(_cntxState.miterLimit = aValue);
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context global alpha, if changed.
+     */
+    private void setCntxGlobalAlpha(double aValue)
+    {
+        if (aValue == _cntxState.globalAlpha) {
+            _stateElidedCount++;
+            return;
+        }
+        _cntx.setGlobalAlpha(_cntxState.globalAlpha = aValue);
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context font, if changed.
+     */
+    private void setCntxFont(String aValue)
+    {
+        if (isSameString(aValue, _cntxState.font)) {
+            _stateElidedCount++;
+            return;
+        }
+        _cntx.setFont(_cntxState.font = aValue);
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context composite operation, if changed.
+     */
+    private void setCntxCompositeOperation(String aValue)
+    {
+        if (isSameString(aValue, _cntxState.compositeOp)) {
+            _stateElidedCount++;
+            return;
+        }
+        _cntx.setGlobalCompositeOperation(_cntxState.compositeOp = aValue);
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context image smoothing for image quality, if changed.
+     */
+    private void setCntxImageQuality(double aValue)
+    {
+        if (aValue == _cntxState.imageQuality) {
+            _stateElidedCount++;
+            return;
+        }
+        if (aValue > .67)
+            _cntx.setImageSmoothingQuality("high");
+        else if (aValue >.33)
+            _cntx.setImageSmoothingQuality("medium");
+        else _cntx.setImageSmoothingQuality("low");
+        _cntx.setImageSmoothingEnabled(aValue > .33);
+        _cntxState.imageQuality = aValue;
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context transform to given matrix (context values, with dpi scale), if changed.
+     */
+    private void setCntxTransform(double[] aMatrix)
+    {
+        double[] m = aMatrix;
+        if (Arrays.equals(m, _cntxMatrix))
+            return;
+        _cntx.setTransform(m[0], m[1], m[2], m[3], m[4], m[5]);
+        System.arraycopy(m, 0, _cntxMatrix, 0, 6);
+        _stateSetCount++;
+    }
+
+    /**
+     * Sets the context transform to current painter transform, if changed (called before any context draw or clip).
+     */
+    private void syncTransform()
+    {
+        setCntxTransform(_matrix);
+    }
+
+    /**
+     * Returns the number of context state sets issued (since last reset).
+     */
+    public int getStateSetCount()  { return _stateSetCount; }
+
+    /**
+     * Returns the number of context state sets elided because the value was unchanged (since last reset).
+     */
+    public int getStateElidedCount()  { return _stateElidedCount; }
+
+    /**
+     * Resets the context state set counters (call once per frame).
+     */
+    public void resetStateCounts()
+    {
+        _stateSetCount = _stateElidedCount = 0;
+    }
+
+    /**
+     * Returns the number of native context save/restore pairs issued (only for clips inside a save).
+     */
+    public int getNativeSaveCount()  { return _nativeSaveCount; }
+
+    /**
+     * Marks the shadow context state as unknown (after the context was changed outside this painter).
+     */
+    protected void invalidateCntxState()
+    {
+        _cntxState = new CntxState();
+        Arrays.fill(_cntxMatrix, Double.NaN);
+    }
+
+    /**
+     * Restores context state properties that differ from given saved state: Known values are set back directly and
+     * unknown values are reapplied from the painter's current (restored) paint, stroke, etc.
+     */
+    private void restoreCntxState(CntxState aState)
+    {
+        CntxState state = _cntxState;
+        boolean applyPaint = false, applyStroke = false;
+
+        // Restore fill and stroke styles
+        if (!isSameValue(state.fillStyle, aState.fillStyle)) {
+            if (aState.fillStyle != null) setCntxFillStyle(aState.fillStyle);
+            else applyPaint = true;
+        }
+        if (!isSameValue(state.strokeStyle, aState.strokeStyle)) {
+            if (aState.strokeStyle != null) setCntxStrokeStyle((String) aState.strokeStyle);
+            else applyPaint = true;
+        }
+
+        // Restore line properties
+        if (Double.compare(state.lineWidth, aState.lineWidth) != 0) {
+            if (!Double.isNaN(aState.lineWidth)) setCntxLineWidth(aState.lineWidth);
+            else applyStroke = true;
+        }
+        if (state.lineDashKnown != aState.lineDashKnown || !Arrays.equals(state.lineDash, aState.lineDash)) {
+            if (aState.lineDashKnown) setCntxLineDash(aState.lineDash);
+            else applyStroke = true;
+        }
+        if (Double.compare(state.lineDashOffset, aState.lineDashOffset) != 0) {
+            if (!Double.isNaN(aState.lineDashOffset)) setCntxLineDashOffset(aState.lineDashOffset);
+            else applyStroke = true;
+        }
+        if (!isSameValue(state.lineCap, aState.lineCap)) {
+            if (aState.lineCap != null) setCntxLineCap(aState.lineCap);
+            else applyStroke = true;
+        }
+        if (!isSameValue(state.lineJoin, aState.lineJoin)) {
+            if (aState.lineJoin != null) setCntxLineJoin(aState.lineJoin);
+            else applyStroke = true;
+        }
+        if (Double.compare(state.miterLimit, aState.miterLimit) != 0) {
+            if (!Double.isNaN(aState.miterLimit)) setCntxMiterLimit(aState.miterLimit);
+            else applyStroke = true;
+        }
+
+        // Restore alpha, font, composite and image quality
+        if (Double.compare(state.globalAlpha, aState.globalAlpha) != 0)
+            setCntxGlobalAlpha(!Double.isNaN(aState.globalAlpha) ? aState.globalAlpha : getOpacity());
+        if (!isSameValue(state.font, aState.font)) {
+            if (aState.font != null) setCntxFont(aState.font);
+            else if (getFont() != null) setCntxFont(CJ.getFontJS(getFont()));
+        }
+        if (!isSameValue(state.compositeOp, aState.compositeOp)) {
+            if (aState.compositeOp != null) setCntxCompositeOperation(aState.compositeOp);
+            else applyComposite(getComposite());
+        }
+        if (Double.compare(state.imageQuality, aState.imageQuality) != 0)
+            setCntxImageQuality(!Double.isNaN(aState.imageQuality) ? aState.imageQuality : getImageQuality());
+
+        // Reapply paint/stroke from painter for unknown values
+        if (applyPaint)
+            applyPaint(getPaint());
+        if (applyStroke)
+            applyStroke(getStroke() != null ? getStroke() : Stroke.Stroke1);
     }
 
     /**
@@ -130,11 +526,14 @@ public class CJPainter extends PainterImpl {
      */
     public void setTransform(Transform aTrans)
     {
+        flushRects();
         super.setTransform(aTrans);
         double[] m = aTrans.getMatrix();
 
-        // Set transform with dpi scale (in case retina/hidpi)
-        _cntx.setTransform(m[0] * _scale, m[1], m[2], m[3] * _scale, m[4], m[5]);
+        // Set transform with dpi scale (in case retina/hidpi) - context is updated lazily before next draw
+        _matrix[0] = m[0] * _scale; _matrix[1] = m[1];
+        _matrix[2] = m[2]; _matrix[3] = m[3] * _scale;
+        _matrix[4] = m[4]; _matrix[5] = m[5];
     }
 
     /**
@@ -142,9 +541,203 @@ public class CJPainter extends PainterImpl {
      */
     public void transform(Transform aTrans)
     {
+        flushRects();
         super.transform(aTrans);
-        double[] m = aTrans.getMatrix();
-        _cntx.transform(m[0], m[1], m[2], m[3], m[4], m[5]);
+        multiplyMatrix(_matrix, aTrans.getMatrix(), _matrix);
+    }
+
+    /**
+     * Sets the given result matrix to given context matrix multiplied by given transform matrix (as context.transform()).
+     */
+    private static void multiplyMatrix(double[] aMatrix, double[] aTransMatrix, double[] theResult)
+    {
+        double a = aMatrix[0], b = aMatrix[1], c = aMatrix[2], d = aMatrix[3], e = aMatrix[4], f = aMatrix[5];
+        double[] t = aTransMatrix;
+        theResult[0] = a * t[0] + c * t[1];
+        theResult[1] = b * t[0] + d * t[1];
+        theResult[2] = a * t[2] + c * t[3];
+        theResult[3] = b * t[2] + d * t[3];
+        theResult[4] = a * t[4] + c * t[5] + e;
+        theResult[5] = b * t[4] + d * t[5] + f;
+    }
+
+    /**
+     * Returns whether consecutive same-state rect fills/strokes are batched into a single path.
+     */
+    public boolean isRectBatchingEnabled()  { return _rectBatchingEnabled; }
+
+    /**
+     * Sets whether consecutive same-state rect fills/strokes are batched into a single path. Batches are drawn on any
+     * state change or other draw, but painter must be flushed when done.
+     */
+    public void setRectBatchingEnabled(boolean aValue)
+    {
+        flushRects();
+        _rectBatchingEnabled = aValue;
+    }
+
+    /**
+     * Returns the number of rects drawn in batches.
+     */
+    public int getBatchedRectCount()  { return _batchedRectCount; }
+
+    /**
+     * Returns the number of rect batches drawn.
+     */
+    public int getRectBatchCount()  { return _rectBatchCount; }
+
+    /**
+     * Returns whether given rect fill/stroke of given type can be added to rect batch. Rects must be finite, opaque
+     * color and source-over. Batched rects never share a pixel (see addBatchRect), so a single path draws the same
+     * pixels as separate rects.
+     */
+    private boolean isRectBatchable(Rect aRect, int aType)
+    {
+        // If disabled or batch of other type is pending, return false
+        if (!_rectBatchingEnabled)
+            return false;
+        if (_rectCount > 0 && aType != _rectBatchType) {
+            flushRects();
+            return false;
+        }
+
+        // If rect not finite, return false (would make whole batch path fail)
+        if (!Double.isFinite(aRect.x) || !Double.isFinite(aRect.y) || !Double.isFinite(aRect.width) || !Double.isFinite(aRect.height)) {
+            flushRects();
+            return false;
+        }
+
+        // If shadow set, return false (shadows of a single path blend differently than separate rects)
+        if (_shadowSet) {
+            flushRects();
+            return false;
+        }
+
+        // Return whether paint is opaque color, full opacity and source-over
+        Paint paint = getPaint();
+        return paint instanceof Color && ((Color) paint).getAlphaInt() == 255 && getOpacity() == 1 &&
+            getComposite() == Composite.SRC_OVER;
+    }
+
+    /**
+     * Adds a rect to the rect batch. If rect touches a pixel of a pending rect (including antialiased edge pixels),
+     * batch is drawn first, since antialiased edges blend differently in a single path than in separate draws.
+     */
+    private void addBatchRect(Rect aRect, int aType)
+    {
+        // Get rect pixel bounds (rounded out, outset by stroke) - if batch full or rect shares pixels with batch, flush
+        double outset = aType == RECT_BATCH_STROKE ? getStrokeOutset() : 0;
+        double[] devBounds = getDeviceBounds(aRect.x, aRect.y, aRect.width, aRect.height, outset, _matrix);
+        double pixMinX = Math.floor(devBounds[0]), pixMinY = Math.floor(devBounds[1]);
+        double pixMaxX = Math.ceil(devBounds[2]), pixMaxY = Math.ceil(devBounds[3]);
+        if (_rectCount == RECT_BATCH_MAX || isBatchOverlap(_rectPixBounds, _rectCount, _batchPixBounds, pixMinX, pixMinY, pixMaxX, pixMaxY))
+            flushRects();
+
+        // If rects array full, grow
+        int index = _rectCount * 4;
+        if (index + 4 > _rects.length) {
+            _rects = Arrays.copyOf(_rects, _rects.length * 2);
+            _rectPixBounds = Arrays.copyOf(_rectPixBounds, _rectPixBounds.length * 2);
+        }
+
+        // Add pixel bounds and update batch pixel bounds
+        double[] batchBounds = _batchPixBounds;
+        _rectPixBounds[index] = pixMinX;
+        _rectPixBounds[index + 1] = pixMinY;
+        _rectPixBounds[index + 2] = pixMaxX;
+        _rectPixBounds[index + 3] = pixMaxY;
+        if (_rectCount == 0) {
+            batchBounds[0] = pixMinX; batchBounds[1] = pixMinY;
+            batchBounds[2] = pixMaxX; batchBounds[3] = pixMaxY;
+        }
+        else {
+            batchBounds[0] = Math.min(batchBounds[0], pixMinX); batchBounds[1] = Math.min(batchBounds[1], pixMinY);
+            batchBounds[2] = Math.max(batchBounds[2], pixMaxX); batchBounds[3] = Math.max(batchBounds[3], pixMaxY);
+        }
+
+        // Add rect (normalized, so all subpaths wind the same way for nonzero fill)
+        double rectX = aRect.x, rectY = aRect.y, rectW = aRect.width, rectH = aRect.height;
+        if (rectW < 0) { rectX += rectW; rectW = -rectW; }
+        if (rectH < 0) { rectY += rectH; rectH = -rectH; }
+        _rects[index] = rectX;
+        _rects[index + 1] = rectY;
+        _rects[index + 2] = rectW;
+        _rects[index + 3] = rectH;
+        _rectBatchType = aType;
+        _rectCount++;
+    }
+
+    /**
+     * Returns whether given pixel bounds share any pixel with batch rects, given their pixel bounds (minX, minY, maxX,
+     * maxY per rect) and the pixel bounds of the whole batch. Bounds are whole pixels, so rects that just touch at a
+     * pixel edge don't overlap.
+     */
+    static boolean isBatchOverlap(double[] theRectBounds, int aRectCount, double[] theBatchBounds,
+        double minX, double minY, double maxX, double maxY)
+    {
+        // If no rects or outside batch bounds, return false
+        if (aRectCount == 0) return false;
+        double[] bounds = theBatchBounds;
+        if (minX >= bounds[2] || maxX <= bounds[0] || minY >= bounds[3] || maxY <= bounds[1])
+            return false;
+
+        // Check each rect
+        bounds = theRectBounds;
+        for (int i = 0, iMax = aRectCount * 4; i < iMax; i += 4)
+            if (minX < bounds[i + 2] && maxX > bounds[i] && minY < bounds[i + 3] && maxY > bounds[i + 1])
+                return true;
+        return false;
+    }
+
+    /**
+     * Draws pending batch rects.
+     */
+    protected void flushRects()
+    {
+        if (_rectCount == 0) return;
+        double[] rects = _rects;
+        int rectCount = _rectCount;
+        _rectCount = 0;
+
+        // Handle single rect: Just draw
+        if (rectCount == 1) {
+            if (_rectBatchType == RECT_BATCH_FILL)
+                _cntx.fillRect(rects[0], rects[1], rects[2], rects[3]);
+            else _cntx.strokeRect(rects[0], rects[1], rects[2], rects[3]);
+            return;
+        }
+
+        // Encode rects as SVG path data (same subpaths as canvas rect())
+        if (_rectPathData == null) _rectPathData = new StringBuilder(rectCount * 48);
+        StringBuilder sb = _rectPathData;
+        sb.setLength(0);
+        for (int i = 0, iMax = rectCount * 4; i < iMax; i += 4) {
+            double rectX = rects[i], rectY = rects[i + 1];
+            double rectMaxX = rectX + rects[i + 2], rectMaxY = rectY + rects[i + 3];
+            sb.append('M').append(rectX).append(' ').append(rectY);
+            sb.append('L').append(rectMaxX).append(' ').append(rectY);
+            sb.append('L').append(rectMaxX).append(' ').append(rectMaxY);
+            sb.append('L').append(rectX).append(' ').append(rectMaxY).append('Z');
+        }
+
+        // Create path and fill or stroke
+        Path2D path = new Path2D(sb.toString());
+        if (_rectBatchType == RECT_BATCH_FILL)
+            _cntx.fill(path);
+        else _cntx.stroke(path);
+
+        // Update counts
+        _batchedRectCount += rectCount;
+        _rectBatchCount++;
+    }
+
+    /**
+     * Override to draw pending batch rects.
+     */
+    @Override
+    public void flush()
+    {
+        flushRects();
     }
 
     /**
@@ -156,13 +749,27 @@ public class CJPainter extends PainterImpl {
         if (getPaint() instanceof GradientPaint)
             sizeGradientPaintToShape(aShape);
 
+        // If shape (outset by stroke) is outside clip, just return
+        if (isClippedOut(aShape, getStrokeOutset()))
+            return;
+
+        // Handle Rect: Add to rect batch if possible, otherwise stroke
+        syncTransform();
         if (aShape instanceof Rect) {
             Rect rect = (Rect) aShape;
-            _cntx.strokeRect(rect.x, rect.y, rect.width, rect.height);
+            if (isRectBatchable(rect, RECT_BATCH_STROKE))
+                addBatchRect(rect, RECT_BATCH_STROKE);
+            else {
+                flushRects();
+                _cntx.strokeRect(rect.x, rect.y, rect.width, rect.height);
+            }
         }
+
+        // Handle other shapes
         else {
-            setShape(aShape);
-            _cntx.stroke();
+            flushRects();
+            Path2D path = _pathCache.getPath(aShape);
+            _cntx.stroke(path);
         }
     }
 
@@ -175,13 +782,27 @@ public class CJPainter extends PainterImpl {
         if (getPaint() instanceof GradientPaint)
             sizeGradientPaintToShape(aShape);
 
+        // If shape is outside clip, just return
+        if (isClippedOut(aShape, 0))
+            return;
+
+        // Handle Rect: Add to rect batch if possible, otherwise fill
+        syncTransform();
         if (aShape instanceof Rect) {
             Rect rect = (Rect) aShape;
-            _cntx.fillRect(rect.x, rect.y, rect.width, rect.height);
+            if (isRectBatchable(rect, RECT_BATCH_FILL))
+                addBatchRect(rect, RECT_BATCH_FILL);
+            else {
+                flushRects();
+                _cntx.fillRect(rect.x, rect.y, rect.width, rect.height);
+            }
         }
+
+        // Handle other shapes
         else {
-            setShape(aShape);
-            _cntx.fill();
+            flushRects();
+            Path2D path = _pathCache.getPath(aShape);
+            _cntx.fill(path);
         }
     }
 
@@ -192,7 +813,7 @@ public class CJPainter extends PainterImpl {
     {
         GradientPaint gradientPaint = (GradientPaint) getPaint();
         if (!gradientPaint.isAbsolute()) {
-            GradientPaint gradientPaint2 = gradientPaint.copyForRect(aShape.getBounds());
+            GradientPaint gradientPaint2 = _paintCache.getGradientForRect(gradientPaint, aShape.getBounds());
             setPaint(gradientPaint2);
         }
     }
@@ -202,10 +823,53 @@ public class CJPainter extends PainterImpl {
      */
     public void clip(Shape aShape)
     {
-        setShape(aShape);
-        _cntx.clip();
+        flushRects();
+        syncTransform();
+
+        // If inside save level without native save, save context so restore can remove clip
+        int levelCount = _saveLevels.size();
+        if (levelCount > 0) {
+            SaveLevel saveLevel = _saveLevels.get(levelCount - 1);
+            if (!saveLevel.nativeSaved) {
+                _cntx.save();
+                saveLevel.nativeSaved = true;
+                saveLevel.nativeCntxState = _cntxState.clone();
+                saveLevel.nativeCntxMatrix = _cntxMatrix.clone();
+                _nativeSaveCount++;
+            }
+        }
+
+        // Intersect clip bounds with shape bounds in canvas pixels
+        Rect bounds = aShape.getBounds();
+        double[] devBounds = getDeviceBounds(bounds.x, bounds.y, bounds.width, bounds.height, 0, _matrix);
+        double[] clipBounds = _clipBounds;
+        clipBounds[0] = Math.max(clipBounds[0], devBounds[0]);
+        clipBounds[1] = Math.max(clipBounds[1], devBounds[1]);
+        clipBounds[2] = Math.min(clipBounds[2], devBounds[2]);
+        clipBounds[3] = Math.min(clipBounds[3], devBounds[3]);
+
+        // Handle Rect
+        if (aShape instanceof Rect) {
+            setShape(aShape);
+            _cntx.clip();
+            return;
+        }
+
+        // Handle other shapes: Clip to path
+        Path2D path = _pathCache.getPath(aShape);
+        _cntx.clip(path);
     }
 
+    /**
+     * Returns the CanvasGradient/CanvasPattern cache for context.
+     */
+    public CJPaintCache getPaintCache()  { return _paintCache; }
+
+    /**
+     * Returns the Path2D cache used for shapes.
+     */
+    public CJPathCache getPathCache()  { return _pathCache; }
+
     /**
      * Sets a shape.
      */
@@ -219,7 +883,7 @@ public class CJPainter extends PainterImpl {
             return;
         }
 
-        double[] pnts = new double[6];
+        double[] pnts = _pnts;
         PathIter pathIter = aShape.getPathIter(null);
         while (pathIter.hasNext()) {
             switch (pathIter.getNext(pnts)) {
@@ -236,11 +900,20 @@ public class CJPainter extends PainterImpl {
      */
     public void drawImage(Image anImg, Transform xform)
     {
+        // Get current transform plus image transform (just return if image is outside clip)
+        // Native image is drawn at its pixel size (not point size), so cull with that
+        double[] imageMatrix = _imageMatrix;
+        multiplyMatrix(_matrix, xform.getMatrix(), imageMatrix);
+        if (isClippedOut(0, 0, anImg.getPixWidth(), anImg.getPixHeight(), 0, imageMatrix))
+            return;
+
+        // Set context transform to image matrix (no save/restore needed)
+        flushRects();
+        setCntxTransform(imageMatrix);
+
+        // Draw image
         CanvasImageSource image = (CanvasImageSource) anImg.getNative();
-        save();
-        transform(xform);
         _cntx.drawImage(image, 0, 0);
-        restore();
     }
 
     /**
@@ -248,6 +921,13 @@ public class CJPainter extends PainterImpl {
      */
     public void drawImage(Image anImg, double srcX, double srcY, double srcW, double srcH, double dx, double dy, double dw, double dh)
     {
+        // If dest rect is outside clip, just return
+        if (isClippedOut(dx, dy, dw, dh, 0, _matrix))
+            return;
+
+        flushRects();
+        syncTransform();
+
         // Correct source width/height for image dpi
         double scaleX = anImg.getDpiX() / 72;
         double scaleY = anImg.getDpiY() / 72;
@@ -268,17 +948,31 @@ public class CJPainter extends PainterImpl {
      */
     public void drawString(String aStr, double aX, double aY, double charSpacing)
     {
+        // If string is outside clip, just return
+        if (isStringClippedOut(aStr, aX, aY, charSpacing, 0))
+            return;
+
+        flushRects();
+        syncTransform();
+
         // Handle no char spacing
         if (charSpacing == 0)
             _cntx.fillText(aStr, aX, aY);
 
-            // Handle char spacing
+        // Handle char spacing with canvas letterSpacing
+        else if (isLetterSpacingSupported()) {
+            _cntx.setMemberString("letterSpacing", charSpacing + "px");
+            _cntx.fillText(aStr, aX, aY);
+            _cntx.setMemberString("letterSpacing", "0px");
+        }
+
+        // Handle char spacing
         else {
             Font font = getFont();
             double x = aX;
             for (int i = 0, iMax = aStr.length(); i < iMax; i++) {
                 char c = aStr.charAt(i);
-                _cntx.fillText(String.valueOf(c), x, aY);
+                _cntx.fillText(getCharString(c), x, aY);
                 x += font.charAdvance(c) + charSpacing;
             }
         }
@@ -290,27 +984,207 @@ public class CJPainter extends PainterImpl {
     @Override
     public void strokeString(String aStr, double aX, double aY, double charSpacing)
     {
+        // If string (outset by stroke) is outside clip, just return
+        if (isStringClippedOut(aStr, aX, aY, charSpacing, getStrokeOutset()))
+            return;
+
+        flushRects();
+        syncTransform();
+
         // Handle no char spacing
         if (charSpacing == 0)
             _cntx.strokeText(aStr, aX, aY);
 
-            // Handle char spacing
+        // Handle char spacing with canvas letterSpacing
+        else if (isLetterSpacingSupported()) {
+            _cntx.setMemberString("letterSpacing", charSpacing + "px");
+            _cntx.strokeText(aStr, aX, aY);
+            _cntx.setMemberString("letterSpacing", "0px");
+        }
+
+        // Handle char spacing
         else {
             Font font = getFont();
             double charX = aX;
             for (int i = 0, iMax = aStr.length(); i < iMax; i++) {
                 char c = aStr.charAt(i);
-                _cntx.strokeText(String.valueOf(c), charX, aY);
+                _cntx.strokeText(getCharString(c), charX, aY);
                 charX += font.charAdvance(c) + charSpacing;
             }
         }
     }
 
+    /**
+     * Returns the number of draw operations culled because they were outside the clip.
+     */
+    public int getCulledCount()  { return _culledCount; }
+
+    /**
+     * Resets the culled draw operations count.
+     */
+    public void resetCulledCount()  { _culledCount = 0; }
+
+    /**
+     * Returns whether given shape (outset by given amount) is completely outside the current clip.
+     */
+    private boolean isClippedOut(Shape aShape, double anOutset)
+    {
+        if (aShape instanceof Rect) {
+            Rect rect = (Rect) aShape;
+            return isClippedOut(rect.x, rect.y, rect.width, rect.height, anOutset, _matrix);
+        }
+        Rect bounds = aShape.getBounds();
+        return isClippedOut(bounds.x, bounds.y, bounds.width, bounds.height, anOutset, _matrix);
+    }
+
+    /**
+     * Returns whether given string is completely outside the current clip.
+     */
+    private boolean isStringClippedOut(String aStr, double aX, double aY, double charSpacing, double anOutset)
+    {
+        // Get font (just return false if missing)
+        Font font = getFont();
+        if (font == null) return false;
+
+        // Get string bounds from advance, ascent and descent (outset for glyph overhang) and return whether clipped
+        double strW = font.getStringAdvance(aStr) + charSpacing * aStr.length();
+        double ascent = font.getAscent();
+        double strH = ascent + font.getDescent();
+        double outset = anOutset + font.getSize() / 4;
+        return isClippedOut(aX, aY - ascent, strW, strH, outset, _matrix);
+    }
+
+    /**
+     * Returns whether given rect (outset by given amount) with given matrix is completely outside the current clip.
+     */
+    private boolean isClippedOut(double aX, double aY, double aW, double aH, double anOutset, double[] aMatrix)
+    {
+        // If shadow set, return false (shadow can be offset from draw bounds)
+        if (_shadowSet)
+            return false;
+
+        // If bounds in canvas pixels are outside clip bounds, increment culled count and return true
+        double[] devBounds = getDeviceBounds(aX, aY, aW, aH, anOutset, aMatrix);
+        if (isOutsideBounds(devBounds, _clipBounds)) {
+            _culledCount++;
+            return true;
+        }
+
+        // Return not clipped
+        return false;
+    }
+
+    /**
+     * Returns whether given device bounds are completely outside given clip bounds (minX, minY, maxX, maxY), with a
+     * pixel of slack for antialiasing.
+     */
+    static boolean isOutsideBounds(double[] theBounds, double[] theClipBounds)
+    {
+        return theBounds[2] < theClipBounds[0] - 1 || theBounds[0] > theClipBounds[2] + 1 ||
+            theBounds[3] < theClipBounds[1] - 1 || theBounds[1] > theClipBounds[3] + 1;
+    }
+
+    /**
+     * Returns the bounds (minX, minY, maxX, maxY) in canvas pixels of given rect (outset by given amount) transformed
+     * by given matrix (in reusable array).
+     */
+    private double[] getDeviceBounds(double aX, double aY, double aW, double aH, double anOutset, double[] aMatrix)
+    {
+        return getDeviceBounds(aX, aY, aW, aH, anOutset, aMatrix, _devBounds);
+    }
+
+    /**
+     * Returns the bounds (minX, minY, maxX, maxY) of given rect (outset by given amount) transformed by given matrix
+     * (a, b, c, d, tx, ty), in given array.
+     */
+    static double[] getDeviceBounds(double aX, double aY, double aW, double aH, double anOutset, double[] aMatrix,
+        double[] theBounds)
+    {
+        // Get rect corners (outset)
+        double x1 = aX - anOutset, y1 = aY - anOutset;
+        double x2 = aX + aW + anOutset, y2 = aY + aH + anOutset;
+
+        // Transform corners
+        double[] m = aMatrix;
+        double ax = m[0] * x1 + m[2] * y1 + m[4], ay = m[1] * x1 + m[3] * y1 + m[5];
+        double bx = m[0] * x2 + m[2] * y1 + m[4], by = m[1] * x2 + m[3] * y1 + m[5];
+        double cx = m[0] * x2 + m[2] * y2 + m[4], cy = m[1] * x2 + m[3] * y2 + m[5];
+        double dx = m[0] * x1 + m[2] * y2 + m[4], dy = m[1] * x1 + m[3] * y2 + m[5];
+
+        // Set and return bounds
+        double[] bounds = theBounds;
+        bounds[0] = Math.min(Math.min(ax, bx), Math.min(cx, dx));
+        bounds[1] = Math.min(Math.min(ay, by), Math.min(cy, dy));
+        bounds[2] = Math.max(Math.max(ax, bx), Math.max(cx, dx));
+        bounds[3] = Math.max(Math.max(ay, by), Math.max(cy, dy));
+        return bounds;
+    }
+
+    /**
+     * Returns the amount current stroke extends beyond shape bounds.
+     */
+    private double getStrokeOutset()  { return getStrokeOutset(getStroke()); }
+
+    /**
+     * Returns the amount given stroke extends beyond shape bounds: Half line width times sqrt(2) (square caps and bevel
+     * joins at 45 degrees), or times miter limit for miter joins if larger.
+     */
+    static double getStrokeOutset(Stroke aStroke)
+    {
+        if (aStroke == null) return Math.sqrt(2) / 2;
+        double outset = aStroke.getWidth() / 2;
+        if (aStroke.getJoin() == Stroke.Join.Miter)
+            return outset * Math.max(aStroke.getMiterLimit(), Math.sqrt(2));
+        return outset * Math.sqrt(2);
+    }
+
+    /**
+     * Sets the context shadow (blur radius and offset in canvas pixels). Draws aren't culled while a shadow is set,
+     * since the shadow can paint outside the draw bounds.
+     */
+    public void setShadow(double aBlur, String aColor, double anOffsetX, double anOffsetY)
+    {
+        flushRects();
+        _cntx.setShadowBlur(aBlur);
+        _cntx.setShadowColor(aColor);
+        _cntx.setShadowOffsetX(anOffsetX);
+        _cntx.setShadowOffsetY(anOffsetY);
+        _shadowSet = aBlur != 0 || anOffsetX != 0 || anOffsetY != 0;
+    }
+
+    /**
+     * Returns whether canvas context supports letterSpacing property.
+     */
+    private boolean isLetterSpacingSupported()
+    {
+        if (_letterSpacingSupported != null) return _letterSpacingSupported;
+        return _letterSpacingSupported = _cntx.getMemberString("letterSpacing") != null;
+    }
+
+    /**
+     * Returns a string for given char (cached for basic range).
+     */
+    private static String getCharString(char aChar)
+    {
+        if (aChar >= _charStrings.length)
+            return String.valueOf(aChar);
+        String charStr = _charStrings[aChar];
+        if (charStr == null)
+            charStr = _charStrings[aChar] = String.valueOf(aChar);
+        return charStr;
+    }
+
     /**
      * Clears a rect.
      */
     public void clearRect(double aX, double aY, double aW, double aH)
     {
+        // If rect is outside clip, just return
+        if (isClippedOut(aX, aY, aW, aH, 0, _matrix))
+            return;
+
+        flushRects();
+        syncTransform();
         _cntx.clearRect(aX, aY, aW, aH);
     }
 
@@ -319,8 +1193,15 @@ public class CJPainter extends PainterImpl {
      */
     public void save()
     {
+        flushRects();
         super.save();
-        _cntx.save();
+
+        // Add save level for transform and context state (context is only saved natively if clip is set)
+        SaveLevel saveLevel = new SaveLevel();
+        saveLevel.matrix = _matrix.clone();
+        saveLevel.cntxState = _cntxState.clone();
+        saveLevel.clipBounds = _clipBounds.clone();
+        _saveLevels.add(saveLevel);
     }
 
     /**
@@ -328,8 +1209,25 @@ public class CJPainter extends PainterImpl {
      */
     public void restore()
     {
+        flushRects();
         super.restore();
-        _cntx.restore();
+
+        // Get save level (just return if none)
+        int levelCount = _saveLevels.size();
+        if (levelCount == 0) return;
+        SaveLevel saveLevel = _saveLevels.remove(levelCount - 1);
+
+        // If context was saved natively (for clip), restore it and reset shadow state to state at native save
+        if (saveLevel.nativeSaved) {
+            _cntx.restore();
+            _cntxState = saveLevel.nativeCntxState;
+            System.arraycopy(saveLevel.nativeCntxMatrix, 0, _cntxMatrix, 0, 6);
+        }
+
+        // Restore transform (set lazily), clip bounds and context state changed since save
+        System.arraycopy(saveLevel.matrix, 0, _matrix, 0, 6);
+        System.arraycopy(saveLevel.clipBounds, 0, _clipBounds, 0, 4);
+        restoreCntxState(saveLevel.cntxState);
     }
 
     /**
@@ -337,14 +1235,9 @@ public class CJPainter extends PainterImpl {
      */
     public void setImageQuality(double aValue)
     {
-        if (snap.util.MathUtils.equals(aValue, getImageQuality())) return;
+        flushRects();
         super.setImageQuality(aValue);
-        if (aValue > .67)
-            _cntx.setImageSmoothingQuality("high");
-        else if (aValue >.33)
-            _cntx.setImageSmoothingQuality("medium");
-        else _cntx.setImageSmoothingQuality("low");
-        _cntx.setImageSmoothingEnabled(aValue > .33);
+        setCntxImageQuality(aValue);
     }
 
     /**
@@ -352,12 +1245,21 @@ public class CJPainter extends PainterImpl {
      */
     public void setComposite(Composite aComp)
     {
+        flushRects();
         super.setComposite(aComp);
+        applyComposite(aComp);
+    }
+
+    /**
+     * Sets the context composite operation for given composite.
+     */
+    private void applyComposite(Composite aComp)
+    {
         switch (aComp) {
-            case SRC_OVER: _cntx.setGlobalCompositeOperation("source-over"); break;
-            case SRC_IN: _cntx.setGlobalCompositeOperation("source-in"); break;
-            case DST_IN: _cntx.setGlobalCompositeOperation("destination-in"); break;
-            case DST_OUT: _cntx.setGlobalCompositeOperation("destination-out"); break;
+            case SRC_OVER: setCntxCompositeOperation("source-over"); break;
+            case SRC_IN: setCntxCompositeOperation("source-in"); break;
+            case DST_IN: setCntxCompositeOperation("destination-in"); break;
+            case DST_OUT: setCntxCompositeOperation("destination-out"); break;
         }
     }
 
@@ -366,6 +1268,81 @@ public class CJPainter extends PainterImpl {
      */
     public void paintStacks(int[] instructionStack, int instructionStackSize, int[] intStack, double[] doubleStack, String[] stringStack, Object[] objectStack)
     {
+        flushRects();
         _cntx.paintStacks(_scale, instructionStack, instructionStackSize, intStack, doubleStack, stringStack, objectStack);
+
+        // Context state and transform were set by stacks, so shadow state is unknown
+        invalidateCntxState();
+    }
+
+    /**
+     * Returns whether given strings are equal (checking identity first, since most are cached).
+     */
+    private static boolean isSameString(String aStr1, String aStr2)
+    {
+        return aStr1 == aStr2 || aStr1 != null && aStr1.equals(aStr2);
+    }
+
+    /**
+     * Returns whether given shadow state values are equal (strings by value, others by identity, null for unknown).
+     */
+    private static boolean isSameValue(Object aValue1, Object aValue2)
+    {
+        return aValue1 == aValue2 || aValue1 instanceof String && aValue1.equals(aValue2);
+    }
+
+    /**
+     * Returns whether given styles are equal (color strings by value, patterns and gradients by identity).
+     */
+    private static boolean isSameStyle(Object aStyle1, Object aStyle2)
+    {
+        if (aStyle1 == aStyle2) return aStyle1 != null;
+        return aStyle1 instanceof String && aStyle1.equals(aStyle2);
+    }
+
+    /**
+     * A class to hold a shadow copy of the context state. Unset values (null/NaN) mean the context value is unknown.
+     */
+    private static class CntxState implements Cloneable {
+
+        // Fill and stroke styles (color string, CanvasPattern or CanvasGradient)
+        Object fillStyle, strokeStyle;
+
+        // Line width, dash offset, miter limit, global alpha and image quality
+        double lineWidth = Double.NaN, lineDashOffset = Double.NaN, miterLimit = Double.NaN, globalAlpha = Double.NaN;
+        double imageQuality = Double.NaN;
+
+        // Line dash (null is a valid value, so also track whether known)
+        double[] lineDash;
+        boolean lineDashKnown;
+
+        // Line cap, line join, font and composite operation
+        String lineCap, lineJoin, font, compositeOp;
+
+        /**
+         * Standard clone implementation.
+         */
+        @Override
+        protected CntxState clone()
+        {
+            try { return (CntxState) super.clone(); }
+            catch (CloneNotSupportedException e) { throw new RuntimeException(e); }
+        }
+    }
+
+    /**
+     * A class to hold painter state for save/restore.
+     */
+    private static class SaveLevel {
+
+        // The transform matrix, shadow context state and clip bounds at save
+        double[] matrix;
+        CntxState cntxState;
+        double[] clipBounds;
+
+        // Whether context was saved natively (for clip), and the shadow context state and matrix at native save
+        boolean nativeSaved;
+        CntxState nativeCntxState;
+        double[] nativeCntxMatrix;
     }
-}
\ No newline at end of file
+}
@@ -1,20 +1,82 @@
 package snapcj;
+import snap.geom.Rect;
+import snap.geom.Shape;
+import snap.geom.Transform;
 import snap.gfx.*;
 import snap.util.SnapEnv;
 import webapi.CanvasImageSource;
 import webapi.CanvasRenderingContext2D;
 import webapi.HTMLCanvasElement;
 import webapi.HTMLElement;
+import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A snap Painter for rendering to a CheerpJ HTMLCanvasElement.
+ *
+ * Painting is recorded to display list stacks and replayed by CJPainter.paintStacks() in JavaScript on flush, so the
+ * direct drawing optimizations of CJPainter (state elision, culling, rect batching, Path2D cache) don't apply here.
  */
 public class CJPainter2 extends PainterDVR2 {
 
     // The RenderContext2D
     protected CanvasRenderingContext2D _cntx;
 
+    // The CanvasGradient/CanvasPattern cache
+    private CJPaintCache _paintCache;
+
+    // Transport arrays for JxBrowser (grown to next power of two and reused while big enough; sizes are passed)
+    private int[] _jxInstructionStack = new int[0], _jxIntStack = new int[0];
+    private double[] _jxDoubleStack = new double[0];
+    private String[] _jxStringStack = new String[0];
+    private Object[] _jxNativeStack = new Object[0];
+
+    // The number of transport arrays allocated
+    private int _transportAllocCount;
+
+    // The tables of Java paint, font and image objects to their JS-side handles (persist across frames): Colors and
+    // fonts by value (often recreated for each paint), other paints and images by identity. Handles save conversion
+    // and bridge calls, but every use still puts the JS object on the native stack (sending only new handles as
+    // indexes would need paintStacks replay changes in WebAPI).
+    private Map<Object, NativeHandle> _valueHandles = new HashMap<>();
+    private Map<Object, NativeHandle> _handles = new IdentityHashMap<>();
+
+    // The flush frame number
+    private int _frameNum;
+
+    // The number of frames a handle can go unused before it is evicted
+    private int _maxHandleAge = DEFAULT_MAX_HANDLE_AGE;
+
+    // The number of handles created
+    private int _handleCreateCount;
+
+    // The dirty rect being painted (if set, display list hash is compared to last paint of rect to skip replay)
+    private Rect _paintRect;
+
+    // The display list hashes (and stack copies to confirm hash matches) of recently painted rects
+    private List<RectHash> _rectHashes = new ArrayList<>();
+
+    // Whether current display list has an image that may change without display list changing (canvas image)
+    private boolean _hasMutableImage;
+
+    // The number of replays skipped because display list was unchanged
+    private int _skippedReplayCount;
+
+    // The stream to capture display lists to and the recorder of painter calls (if capturing)
+    private DataOutputStream _captureStream;
+    private CJDisplayList.Recorder _recorder;
+
+    // The default number of frames a handle can go unused before it is evicted
+    public static final int DEFAULT_MAX_HANDLE_AGE = 120;
+
+    // The max number of rect hashes to keep
+    private static final int RECT_HASHES_MAX = 64;
+
     /**
      * Constructor for given canvas.
      */
@@ -36,28 +98,537 @@ public class CJPainter2 extends PainterDVR2 {
     {
         CJPainter painter = (CJPainter) _pntr;
         _cntx = painter._cntx;
+        _paintCache = painter.getPaintCache();
+        _frameNum++;
+
+        // If capturing, write ops recorded since last flush as display list
+        if (_recorder != null)
+            captureDisplayList();
 
         // Convert Native stack objects to JS (where applicable)
+        _hasMutableImage = false;
         for (int i = 0; i < _nativeStackSize; i++)
-            _nativeStack[i] = toNative(_nativeStack[i]);
+            _nativeStack[i] = getNativeHandle(_nativeStack[i]);
+
+        // Periodically evict handles unused for max age frames
+        if (_frameNum % _maxHandleAge == 0)
+            evictUnusedHandles();
+
+        // If painting dirty rect and display list is same as last paint of rect, skip replay
+        Rect paintRect = _paintRect;
+        _paintRect = null;
+        if (paintRect != null && isDisplayListUnchanged(paintRect)) {
+            _skippedReplayCount++;
+            clear(); _cntx = null;
+            return;
+        }
 
-        // If JXBrowser, make arrays exactly the right size
+        // If JXBrowser, copy stacks to transport arrays (reused while big enough - instruction size is passed and other
+        // stacks are read in instruction order, so extra capacity is never read)
         if (SnapEnv.isJxBrowser) {
-            int[] instructionStack = Arrays.copyOf(_instructionStack, _instructionStackSize);
-            int[] intStack = Arrays.copyOf(_intStack, _intStackSize);
-            double[] doubleStack = Arrays.copyOf(_doubleStack, _doubleStackSize);
-            String[] stringStack = Arrays.copyOf(_stringStack, _stringStackSize);
-            Object[] nativeStack = Arrays.copyOf(_nativeStack, _nativeStackSize);
+            int[] instructionStack = _jxInstructionStack = getTransportInts(_instructionStack, _instructionStackSize, _jxInstructionStack);
+            int[] intStack = _jxIntStack = getTransportInts(_intStack, _intStackSize, _jxIntStack);
+            double[] doubleStack = _jxDoubleStack = getTransportDoubles(_doubleStack, _doubleStackSize, _jxDoubleStack);
+            String[] stringStack = _jxStringStack = getTransportObjects(_stringStack, _stringStackSize, _jxStringStack);
+            Object[] nativeStack = _jxNativeStack = getTransportObjects(_nativeStack, _nativeStackSize, _jxNativeStack);
             painter.paintStacks(instructionStack, _instructionStackSize, intStack, doubleStack, stringStack, nativeStack);
+            Arrays.fill(_jxStringStack, 0, _stringStackSize, null);
+            Arrays.fill(_jxNativeStack, 0, _nativeStackSize, null);
         }
 
-        // Otherwise just send through Paint stacks
+        // Otherwise just send through Paint stacks (CheerpJ primitive arrays are JS typed arrays, so no copy is made)
         else painter.paintStacks(_instructionStack, _instructionStackSize, _intStack, _doubleStack, _stringStack, _nativeStack);
 
         // Clear painter
         clear(); _cntx = null;
     }
 
+    /**
+     * Returns the number of transport arrays allocated (JxBrowser only).
+     */
+    public int getTransportAllocCount()  { return _transportAllocCount; }
+
+    /**
+     * Returns given ints copied to given reuse array, or to a new array of transport capacity if too small.
+     */
+    private int[] getTransportInts(int[] theInts, int aSize, int[] aReuseArray)
+    {
+        if (aReuseArray.length < aSize) {
+            aReuseArray = new int[getTransportCapacity(aSize)];
+            _transportAllocCount++;
+        }
+        System.arraycopy(theInts, 0, aReuseArray, 0, aSize);
+        return aReuseArray;
+    }
+
+    /**
+     * Returns given doubles copied to given reuse array, or to a new array of transport capacity if too small.
+     */
+    private double[] getTransportDoubles(double[] theDoubles, int aSize, double[] aReuseArray)
+    {
+        if (aReuseArray.length < aSize) {
+            aReuseArray = new double[getTransportCapacity(aSize)];
+            _transportAllocCount++;
+        }
+        System.arraycopy(theDoubles, 0, aReuseArray, 0, aSize);
+        return aReuseArray;
+    }
+
+    /**
+     * Returns given objects copied to given reuse array, or to a new array of transport capacity if too small.
+     */
+    private <T> T[] getTransportObjects(T[] theObjects, int aSize, T[] aReuseArray)
+    {
+        if (aReuseArray.length < aSize) {
+            aReuseArray = Arrays.copyOf(aReuseArray, getTransportCapacity(aSize));
+            _transportAllocCount++;
+        }
+        System.arraycopy(theObjects, 0, aReuseArray, 0, aSize);
+        return aReuseArray;
+    }
+
+    /**
+     * Returns the transport array capacity for given size (next power of two, at least 64).
+     */
+    private static int getTransportCapacity(int aSize)
+    {
+        return aSize <= 64 ? 64 : Integer.highestOneBit(aSize - 1) << 1;
+    }
+
+    /**
+     * Returns whether display lists are being captured.
+     */
+    public boolean isCapturing()  { return _captureStream != null; }
+
+    /**
+     * Starts capturing the painter calls of each flush to given file as display lists (or stops capturing if null).
+     * Captures can be replayed offline with CJDisplayListReplay.
+     */
+    public void setCaptureFile(File aFile)
+    {
+        // Close current capture stream
+        if (_captureStream != null) {
+            try { _captureStream.close(); }
+            catch (IOException e) { System.err.println("CJPainter2.setCaptureFile: close failed: " + e); }
+            _captureStream = null;
+            _recorder = null;
+        }
+
+        // Open new capture stream, write header and create recorder
+        if (aFile != null) {
+            try {
+                _captureStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(aFile)));
+                CJDisplayList.writeHeader(_captureStream, getPainter()._scale);
+                _recorder = new CJDisplayList.Recorder();
+            }
+            catch (IOException e) {
+                System.err.println("CJPainter2.setCaptureFile: open failed: " + e);
+                _captureStream = null;
+            }
+        }
+    }
+
+    /**
+     * Records a painter call with recorder (stops capturing on failure).
+     */
+    private void record(RecordOp aRecordOp)
+    {
+        try { aRecordOp.record(_recorder); }
+        catch (IOException e) {
+            System.err.println("CJPainter2.record failed: " + e);
+            setCaptureFile(null);
+        }
+    }
+
+    /**
+     * Writes the ops recorded since last flush to capture stream as display list (stops capturing on failure).
+     */
+    private void captureDisplayList()
+    {
+        try {
+            _recorder.writeDisplayList(_captureStream, _paintRect);
+            _captureStream.flush();
+        }
+        catch (IOException e) {
+            System.err.println("CJPainter2.captureDisplayList failed: " + e);
+            setCaptureFile(null);
+        }
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void setPaint(Paint aPaint)
+    {
+        if (_recorder != null) record(r -> r.setPaint(aPaint));
+        super.setPaint(aPaint);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void setStroke(Stroke aStroke)
+    {
+        if (_recorder != null) record(r -> r.setStroke(aStroke));
+        super.setStroke(aStroke);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void setOpacity(double aValue)
+    {
+        if (_recorder != null) record(r -> r.setOpacity(aValue));
+        super.setOpacity(aValue);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void setFont(Font aFont)
+    {
+        if (_recorder != null && aFont != null) record(r -> r.setFont(aFont));
+        super.setFont(aFont);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void setTransform(Transform aTrans)
+    {
+        if (_recorder != null) record(r -> r.setTransform(aTrans, false));
+        super.setTransform(aTrans);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void transform(Transform aTrans)
+    {
+        if (_recorder != null) record(r -> r.setTransform(aTrans, true));
+        super.transform(aTrans);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void draw(Shape aShape)
+    {
+        if (_recorder != null) record(r -> r.shape(CJDisplayList.OP_DRAW, aShape));
+        super.draw(aShape);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void fill(Shape aShape)
+    {
+        if (_recorder != null) record(r -> r.shape(CJDisplayList.OP_FILL, aShape));
+        super.fill(aShape);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void clip(Shape aShape)
+    {
+        if (_recorder != null) record(r -> r.shape(CJDisplayList.OP_CLIP, aShape));
+        super.clip(aShape);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void drawImage(Image anImg, Transform xform)
+    {
+        if (_recorder != null) record(r -> r.drawImage(anImg, xform));
+        super.drawImage(anImg, xform);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void drawImage(Image anImg, double srcX, double srcY, double srcW, double srcH, double dx, double dy, double dw, double dh)
+    {
+        if (_recorder != null) record(r -> r.drawImage(anImg, srcX, srcY, srcW, srcH, dx, dy, dw, dh));
+        super.drawImage(anImg, srcX, srcY, srcW, srcH, dx, dy, dw, dh);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void drawString(String aStr, double aX, double aY, double charSpacing)
+    {
+        if (_recorder != null) record(r -> r.string(CJDisplayList.OP_DRAW_STRING, aStr, aX, aY, charSpacing));
+        super.drawString(aStr, aX, aY, charSpacing);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void strokeString(String aStr, double aX, double aY, double charSpacing)
+    {
+        if (_recorder != null) record(r -> r.string(CJDisplayList.OP_STROKE_STRING, aStr, aX, aY, charSpacing));
+        super.strokeString(aStr, aX, aY, charSpacing);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void clearRect(double aX, double aY, double aW, double aH)
+    {
+        if (_recorder != null) record(r -> r.clearRect(aX, aY, aW, aH));
+        super.clearRect(aX, aY, aW, aH);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void save()
+    {
+        if (_recorder != null) record(r -> r.saveOrRestore(true));
+        super.save();
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void restore()
+    {
+        if (_recorder != null) record(r -> r.saveOrRestore(false));
+        super.restore();
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void setImageQuality(double aValue)
+    {
+        if (_recorder != null) record(r -> r.setImageQuality(aValue));
+        super.setImageQuality(aValue);
+    }
+
+    /**
+     * Override to record call if capturing.
+     */
+    @Override
+    public void setComposite(Composite aComp)
+    {
+        if (_recorder != null) record(r -> r.setComposite(aComp));
+        super.setComposite(aComp);
+    }
+
+    /**
+     * Sets the dirty rect being painted for next flush (allows flush to skip replay if display list is unchanged).
+     */
+    public void setPaintRect(Rect aRect)  { _paintRect = aRect; }
+
+    /**
+     * Returns the number of replays skipped because display list was unchanged.
+     */
+    public int getSkippedReplayCount()  { return _skippedReplayCount; }
+
+    /**
+     * Clears display list hashes of painted rects (call when canvas is cleared or resized).
+     */
+    public void clearPaintRectHashes()
+    {
+        _rectHashes.clear();
+    }
+
+    /**
+     * Returns whether the current display list is the same as the last one painted for given rect. Also records the
+     * current display list hash and stacks for rect and removes those of other rects it paints over.
+     */
+    private boolean isDisplayListUnchanged(Rect aRect)
+    {
+        // If display list has canvas or loading image, its pixels can change without display list changing
+        long hash = _hasMutableImage ? 0 : getDisplayListHash();
+
+        // Look for hash of same rect - if found with same hash, confirm with stacks and return true if same
+        for (RectHash rectHash : _rectHashes) {
+            if (rectHash._rect.equals(aRect)) {
+                if (hash != 0 && rectHash._hash == hash && isSameDisplayList(rectHash))
+                    return true;
+                break;
+            }
+        }
+
+        // Remove hashes of rects that intersect this rect (their pixels are about to change)
+        for (int i = _rectHashes.size() - 1; i >= 0; i--)
+            if (_rectHashes.get(i)._rect.intersectsRect(aRect))
+                _rectHashes.remove(i);
+
+        // Add hash for rect (if no hash, just return)
+        if (hash == 0)
+            return false;
+        if (_rectHashes.size() >= RECT_HASHES_MAX)
+            _rectHashes.remove(0);
+        RectHash rectHash = new RectHash(aRect.clone(), hash);
+        rectHash._instructions = Arrays.copyOf(_instructionStack, _instructionStackSize);
+        rectHash._ints = Arrays.copyOf(_intStack, _intStackSize);
+        rectHash._doubles = Arrays.copyOf(_doubleStack, _doubleStackSize);
+        rectHash._strings = Arrays.copyOf(_stringStack, _stringStackSize);
+        rectHash._natives = Arrays.copyOf(_nativeStack, _nativeStackSize);
+        _rectHashes.add(rectHash);
+        return false;
+    }
+
+    /**
+     * Returns whether current display list stacks are equal to the stack copies of given rect hash (native stack by
+     * value for strings and identity for JS objects).
+     */
+    private boolean isSameDisplayList(RectHash aRectHash)
+    {
+        // Check primitive and string stacks
+        if (!Arrays.equals(_instructionStack, 0, _instructionStackSize, aRectHash._instructions, 0, aRectHash._instructions.length) ||
+            !Arrays.equals(_intStack, 0, _intStackSize, aRectHash._ints, 0, aRectHash._ints.length) ||
+            !Arrays.equals(_doubleStack, 0, _doubleStackSize, aRectHash._doubles, 0, aRectHash._doubles.length) ||
+            !Arrays.equals(_stringStack, 0, _stringStackSize, aRectHash._strings, 0, aRectHash._strings.length))
+            return false;
+
+        // Check native stack
+        Object[] natives = aRectHash._natives;
+        if (natives.length != _nativeStackSize)
+            return false;
+        for (int i = 0; i < _nativeStackSize; i++) {
+            Object obj = _nativeStack[i];
+            if (obj != natives[i] && !(obj instanceof String && obj.equals(natives[i])))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a 64 bit hash of the current display list stacks (native stack by value for strings and identity for
+     * JS objects).
+     */
+    private long getDisplayListHash()
+    {
+        long hash = 1;
+        for (int i = 0; i < _instructionStackSize; i++)
+            hash = mixHash(hash, _instructionStack[i]);
+        for (int i = 0; i < _intStackSize; i++)
+            hash = mixHash(hash, _intStack[i]);
+        for (int i = 0; i < _doubleStackSize; i++)
+            hash = mixHash(hash, Double.doubleToLongBits(_doubleStack[i]));
+        for (int i = 0; i < _stringStackSize; i++)
+            hash = mixHash(hash, _stringStack[i] != null ? _stringStack[i].hashCode() : 0);
+        for (int i = 0; i < _nativeStackSize; i++) {
+            Object obj = _nativeStack[i];
+            hash = mixHash(hash, obj instanceof String ? obj.hashCode() : System.identityHashCode(obj));
+        }
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * Returns given hash combined with given value (64 bit multiply and xor-shift, so values spread over all bits).
+     */
+    private static long mixHash(long aHash, long aValue)
+    {
+        long hash = (aHash ^ aValue) * 0x9E3779B97F4A7C15L;
+        return hash ^ hash >>> 29;
+    }
+
+    /**
+     * Returns the number of frames a handle can go unused before it is evicted.
+     */
+    public int getMaxHandleAge()  { return _maxHandleAge; }
+
+    /**
+     * Sets the number of frames a handle can go unused before it is evicted.
+     */
+    public void setMaxHandleAge(int aValue)  { _maxHandleAge = Math.max(aValue, 1); }
+
+    /**
+     * Returns the number of handles currently in handle table.
+     */
+    public int getHandleCount()  { return _valueHandles.size() + _handles.size(); }
+
+    /**
+     * Returns the number of handles created.
+     */
+    public int getHandleCreateCount()  { return _handleCreateCount; }
+
+    /**
+     * Returns the JS-side handle for given native stack object (from handle table for paints, fonts and images).
+     */
+    private Object getNativeHandle(Object anObj)
+    {
+        // Handle String (already JS friendly, e.g. interned color/font strings)
+        if (anObj instanceof String)
+            return anObj;
+
+        // If image or image paint has mutable image, mark display list mutable (pixels can change without it changing)
+        Image image = anObj instanceof Image ? (Image) anObj : anObj instanceof ImagePaint ? ((ImagePaint) anObj).getImage() : null;
+        boolean isMutableImage = image != null && isMutableImage(image);
+        if (isMutableImage)
+            _hasMutableImage = true;
+
+        // If image paint for mutable image, return new pattern (a cached pattern would go stale)
+        if (isMutableImage && anObj instanceof ImagePaint)
+            return toNative(anObj);
+
+        // Get handle from table - if found and still valid, mark used and return
+        Map<Object, NativeHandle> handles = anObj instanceof Color || anObj instanceof Font ? _valueHandles : _handles;
+        NativeHandle handle = handles.get(anObj);
+        Object imageSource = anObj instanceof Image ? image.getNative() : null;
+        if (handle != null && handle._imageSource == imageSource) {
+            handle._lastFrameNum = _frameNum;
+            return handle._jsObj;
+        }
+
+        // Convert object (just return if not a paint, font or image)
+        Object jsObj = toNative(anObj);
+        if (jsObj == anObj)
+            return jsObj;
+
+        // Create handle, add to table and return
+        handle = new NativeHandle();
+        handle._jsObj = jsObj;
+        handle._imageSource = imageSource;
+        handle._lastFrameNum = _frameNum;
+        handles.put(anObj, handle);
+        _handleCreateCount++;
+        return jsObj;
+    }
+
+    /**
+     * Returns whether given image pixels can change without the display list changing (canvas-backed or still loading).
+     */
+    static boolean isMutableImage(Image anImage)
+    {
+        return anImage.getNative() instanceof HTMLCanvasElement || !anImage.isLoaded();
+    }
+
+    /**
+     * Removes handles that haven't been used for max handle age frames.
+     */
+    private void evictUnusedHandles()
+    {
+        int minFrameNum = _frameNum - _maxHandleAge;
+        _valueHandles.values().removeIf(handle -> handle._lastFrameNum < minFrameNum);
+        _handles.values().removeIf(handle -> handle._lastFrameNum < minFrameNum);
+    }
+
     /**
      * Converts objects in native stack to JavaScript friendly object.
      */
@@ -70,9 +641,9 @@ public class CJPainter2 extends PainterDVR2 {
         // Handle texture, gradient: Convert to canvas versions
         if (anObj instanceof Paint) {
             if (anObj instanceof ImagePaint)
-                return CJ.getTextureJS((ImagePaint) anObj, _cntx).getJS();
+                return _paintCache.getPattern((ImagePaint) anObj).getJS();
             if (anObj instanceof GradientPaint)
-                return CJ.getGradientJS((GradientPaint) anObj, _cntx).getJS();
+                return _paintCache.getGradient((GradientPaint) anObj).getJS();
             return CJ.getColorJS(((Paint) anObj).getColor());
         }
 
@@ -88,4 +659,51 @@ public class CJPainter2 extends PainterDVR2 {
 
         return anObj;
     }
-}
\ No newline at end of file
+
+    /**
+     * An interface to record a painter call with a display list recorder.
+     */
+    private interface RecordOp {
+        void record(CJDisplayList.Recorder aRecorder) throws IOException;
+    }
+
+    /**
+     * A class to hold the JS-side object for a Java paint, font or image.
+     */
+    private static class NativeHandle {
+
+        // The JS object (or string)
+        private Object _jsObj;
+
+        // The image native (for images, to catch image changing native)
+        private Object _imageSource;
+
+        // The frame number of last use
+        private int _lastFrameNum;
+    }
+
+    /**
+     * A class to hold the display list hash and stack copies for a painted rect.
+     */
+    private static class RectHash {
+
+        // The rect and hash
+        private Rect _rect;
+        private long _hash;
+
+        // The display list stack copies (to confirm hash matches)
+        private int[] _instructions, _ints;
+        private double[] _doubles;
+        private String[] _strings;
+        private Object[] _natives;
+
+        /**
+         * Constructor.
+         */
+        private RectHash(Rect aRect, long aHash)
+        {
+            _rect = aRect;
+            _hash = aHash;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import snap.geom.PathIter;
+import snap.geom.Rect;
+import snap.geom.Seg;
+import snap.geom.Shape;
+import webapi.Path2D;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class manages JavaScript Path2D objects for Snap shapes, so complex shapes drawn repeatedly can be filled,
+ * stroked or clipped with a single call. Shapes are weakly keyed by identity. Each entry records the shape's cached
+ * bounds object, which Snap shapes discard in shapeChanged(), so a hit is confirmed without walking the path. When the
+ * bounds object changed, a fingerprint of the path segments is compared, so a modified shape gets a new Path2D.
+ *
+ * This relies on shapes calling shapeChanged() when modified (as Snap shapes do in their setters). A shape changed
+ * in place without it keeps its cached bounds object, so it keeps getting its old Path2D.
+ *
+ * Paths are created from SVG path data encoded into a reusable buffer, so any path costs one bridge call to create,
+ * regardless of segment count. The path data is encoded in the same walk of the path that gets the fingerprint.
+ */
+public class CJPathCache {
+
+    // A map of Shape (weakly referenced, by identity) to path entries
+    private Map<ShapeRef, PathEntry> _paths = new HashMap<>();
+
+    // The queue of references to collected shapes
+    private ReferenceQueue<Shape> _refQueue = new ReferenceQueue<>();
+
+    // The min number of segments for a shape to be cached
+    private int _minSegmentCount = DEFAULT_MIN_SEGMENT_COUNT;
+
+    // The number of cache hits
+    private int _hitCount;
+
+    // The number of path segment calls saved by cache hits
+    private long _segmentsSavedCount;
+
+    // The number of uncached paths created
+    private int _uncachedCount;
+
+    // Points array for path iteration
+    private double[] _pnts = new double[6];
+
+    // The buffer for SVG path data
+    private StringBuilder _pathData = new StringBuilder(1024);
+
+    // The fingerprint of last shape
+    private int _segCount;
+    private long _segHash;
+
+    // The default min number of segments for a shape to be cached
+    public static final int DEFAULT_MIN_SEGMENT_COUNT = 8;
+
+    // The shared cache
+    private static CJPathCache _shared = new CJPathCache();
+
+    /**
+     * Constructor.
+     */
+    public CJPathCache()  { }
+
+    /**
+     * Returns the min number of segments for a shape to be cached.
+     */
+    public int getMinSegmentCount()  { return _minSegmentCount; }
+
+    /**
+     * Sets the min number of segments for a shape to be cached.
+     */
+    public void setMinSegmentCount(int aValue)  { _minSegmentCount = aValue; }
+
+    /**
+     * Returns the number of cache hits.
+     */
+    public int getHitCount()  { return _hitCount; }
+
+    /**
+     * Returns the number of path segment calls saved by cache hits.
+     */
+    public long getSegmentsSavedCount()  { return _segmentsSavedCount; }
+
+    /**
+     * Returns the number of uncached paths created (shapes with too few segments).
+     */
+    public int getUncachedCount()  { return _uncachedCount; }
+
+    /**
+     * Resets the hit, segments saved and uncached counts.
+     */
+    public void resetCounts()
+    {
+        _hitCount = 0;
+        _segmentsSavedCount = 0;
+        _uncachedCount = 0;
+    }
+
+    /**
+     * Returns a Path2D for given shape (cached if shape has enough segments to be worth caching).
+     */
+    public Path2D getPath(Shape aShape)
+    {
+        // Remove entries for collected shapes
+        removeCollectedEntries();
+
+        // Get entry for shape - if found with same bounds object and values, shape is unchanged, so return path
+        ShapeRef shapeRef = new ShapeRef(aShape, null);
+        PathEntry entry = _paths.get(shapeRef);
+        Rect bounds = aShape.getBounds();
+        if (entry != null && entry.isSameBounds(bounds)) {
+            _hitCount++;
+            _segmentsSavedCount += entry._segCount;
+            return entry._path;
+        }
+
+        // Encode path data and get shape fingerprint (if too few segments, just return new path)
+        String pathData = getPathData(aShape);
+        if (_segCount < _minSegmentCount) {
+            _uncachedCount++;
+            return new Path2D(pathData);
+        }
+
+        // If entry found with same fingerprint, update bounds and return path
+        if (entry != null && entry._segCount == _segCount && entry._segHash == _segHash) {
+            entry.setBounds(bounds);
+            _hitCount++;
+            _segmentsSavedCount += _segCount;
+            return entry._path;
+        }
+
+        // Create new entry, add and return path
+        entry = new PathEntry();
+        entry._path = new Path2D(pathData);
+        entry._segCount = _segCount;
+        entry._segHash = _segHash;
+        entry.setBounds(bounds);
+        _paths.put(new ShapeRef(aShape, _refQueue), entry);
+        return entry._path;
+    }
+
+    /**
+     * Removes entries for shapes that have been garbage collected.
+     */
+    private void removeCollectedEntries()
+    {
+        for (Object ref = _refQueue.poll(); ref != null; ref = _refQueue.poll())
+            _paths.remove(ref);
+    }
+
+    /**
+     * Creates a Path2D for given shape from SVG path data (a single bridge call).
+     */
+    public Path2D createPath(Shape aShape)
+    {
+        String pathData = getPathData(aShape);
+        return new Path2D(pathData);
+    }
+
+    /**
+     * Returns SVG path data string for given shape, encoded in reusable buffer. Also sets the shape fingerprint
+     * (segment count and hash of segments and coords) in the same walk of the path.
+     */
+    String getPathData(Shape aShape)
+    {
+        StringBuilder sb = _pathData;
+        sb.setLength(0);
+        double[] pnts = _pnts;
+        int segCount = 0;
+        long segHash = 1;
+
+        // Iterate over segments to append path data and update hash
+        PathIter pathIter = aShape.getPathIter(null);
+        while (pathIter.hasNext()) {
+            Seg seg = pathIter.getNext(pnts);
+            switch (seg) {
+                case MoveTo: sb.append('M'); break;
+                case LineTo: sb.append('L'); break;
+                case QuadTo: sb.append('Q'); break;
+                case CubicTo: sb.append('C'); break;
+                case Close: sb.append('Z'); break;
+            }
+            int coordCount = seg.getCount() * 2;
+            appendPoints(sb, pnts, coordCount);
+            segHash = mixHash(segHash, seg.ordinal());
+            for (int i = 0; i < coordCount; i++)
+                segHash = mixHash(segHash, Double.doubleToLongBits(pnts[i]));
+            segCount++;
+        }
+
+        // Set fingerprint and return string
+        _segCount = segCount;
+        _segHash = segHash;
+        return sb.toString();
+    }
+
+    /**
+     * Returns the segment count of last shape encoded.
+     */
+    int getLastSegmentCount()  { return _segCount; }
+
+    /**
+     * Returns the segment hash of last shape encoded.
+     */
+    long getLastSegmentHash()  { return _segHash; }
+
+    /**
+     * Returns given hash combined with given value (64 bit multiply and xor-shift, so coords spread over all bits).
+     */
+    private static long mixHash(long aHash, long aValue)
+    {
+        long hash = (aHash ^ aValue) * 0x9E3779B97F4A7C15L;
+        return hash ^ hash >>> 29;
+    }
+
+    /**
+     * Appends given number of point coords to path data (space separated, full precision).
+     */
+    private static void appendPoints(StringBuilder aSB, double[] thePnts, int aCount)
+    {
+        for (int i = 0; i < aCount; i++) {
+            if (i > 0) aSB.append(' ');
+            aSB.append(thePnts[i]);
+        }
+    }
+
+    /**
+     * Removes all cached paths.
+     */
+    public void clear()
+    {
+        _paths.clear();
+        removeCollectedEntries();
+    }
+
+    /**
+     * Returns the shared path cache.
+     */
+    public static CJPathCache getShared()  { return _shared; }
+
+    /**
+     * A class to hold a Path2D for a Snap shape.
+     */
+    private static class PathEntry {
+
+        // The Path2D
+        private Path2D _path;
+
+        // The fingerprint of shape when path was created
+        private int _segCount;
+        private long _segHash;
+
+        // The bounds object of shape when last checked and its values
+        private Rect _bounds;
+        private double _boundsX, _boundsY, _boundsW, _boundsH;
+
+        /**
+         * Sets the bounds object and values.
+         */
+        private void setBounds(Rect aRect)
+        {
+            _bounds = aRect;
+            _boundsX = aRect.x; _boundsY = aRect.y;
+            _boundsW = aRect.width; _boundsH = aRect.height;
+        }
+
+        /**
+         * Returns whether given bounds is same object with same values as last check.
+         */
+        private boolean isSameBounds(Rect aRect)
+        {
+            return aRect == _bounds && aRect.x == _boundsX && aRect.y == _boundsY &&
+                aRect.width == _boundsW && aRect.height == _boundsH;
+        }
+    }
+
+    /**
+     * A weak reference to a shape that is equal to other references to same shape (by identity).
+     */
+    private static class ShapeRef extends WeakReference<Shape> {
+
+        // The identity hash of shape
+        private int _hash;
+
+        /**
+         * Constructor.
+         */
+        private ShapeRef(Shape aShape, ReferenceQueue<Shape> aQueue)
+        {
+            super(aShape, aQueue);
+            _hash = System.identityHashCode(aShape);
+        }
+
+        /**
+         * Standard equals implementation.
+         */
+        @Override
+        public boolean equals(Object anObj)
+        {
+            if (anObj == this) return true;
+            if (!(anObj instanceof ShapeRef)) return false;
+            Shape shape = get();
+            return shape != null && shape == ((ShapeRef) anObj).get();
+        }
+
+        /**
+         * Standard hashCode implementation.
+         */
+        @Override
+        public int hashCode()  { return _hash; }
+    }
+}
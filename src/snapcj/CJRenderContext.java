@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import snap.gfx.Color;
+import snap.util.SnapUtils;
+import webapi.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class holds a WebGL canvas and context with the GL resources created for it (shader programs, buffers and
+ * textures). Each CJRenderer normally has its own, but renderers can share one so that many 3D views don't exhaust
+ * the browser's limit on live WebGL contexts.
+ */
+public class CJRenderContext {
+
+    // The canvas
+    private HTMLCanvasElement _canvas;
+
+    // The WebGLRenderingContext
+    protected WebGLRenderingContext _gl;
+
+    // The WebGL2RenderingContext (null if WebGL2 not enabled or not available)
+    protected WebGL2RenderingContext _gl2;
+
+    // A map of shader programs
+    private Map<String,WebGLProgram>  _programs = new HashMap<>();
+
+    // A map of shader program to uniform/attribute locations (resolved at link time)
+    private Map<WebGLProgram,ProgramLocations>  _programLocations = new HashMap<>();
+
+    // A map of vertex shaders
+    private Map<String, WebGLShader>  _vertShaders = new HashMap<>();
+
+    // A map of fragment shaders
+    private Map<String,WebGLShader>  _fragShaders = new HashMap<>();
+
+    // A map of shader program name to compile/link time in milliseconds
+    private Map<String,Double>  _programBuildTimes = new HashMap<>();
+
+    // The cache of WebGLTextures for textures
+    private CJTextureCache  _textureCache;
+
+    // The cache of WebGLBuffers for VertexArrays
+    private CJBufferCache  _bufferCache;
+
+    // The canvas size in pixels
+    private int  _canvasPixW, _canvasPixH;
+
+    // The max canvas size in pixels required by renderers since frame number of last shrink check
+    private int  _requiredPixW, _requiredPixH, _shrinkCheckFrameNum;
+
+    // The frame number (incremented for each frame rendered by any renderer using context)
+    private int  _frameNum;
+
+    // A map of shader source path to source text (shared by all contexts)
+    private static Map<String,String>  _sourceTexts = new HashMap<>();
+
+    // The contexts shared by renderers with SharedContextEnabled (with and without WebGL2 enabled)
+    private static CJRenderContext  _shared, _sharedWebGL1;
+
+    // The number of frames between checks to shrink canvas to max size required by renderers
+    private static final int SHRINK_CHECK_FRAME_COUNT = 300;
+
+    // The names of all shader programs
+    public static final String[] SHADER_NAMES = { "Points_Color", "Points_Colors", "Points_Color_Tex" };
+
+    /**
+     * Constructor.
+     */
+    public CJRenderContext(boolean isWebGL2Enabled)
+    {
+        // Create canvas
+        _canvas = (HTMLCanvasElement) HTMLDocument.getDocument().createElement("canvas");
+
+        // If WebGL2 enabled, try to get WebGL2 context
+        if (isWebGL2Enabled) {
+            _gl2 = (WebGL2RenderingContext) _canvas.getContext("webgl2");
+            _gl = _gl2;
+        }
+
+        // If no WebGL2, get WebGL context (if missing, complain and return)
+        if (_gl == null)
+            _gl = (WebGLRenderingContext) _canvas.getContext("webgl");
+        if (_gl == null) {
+            System.err.println("CJRenderContext.init: canvas getContext() returned null");
+            return;
+        }
+
+        // Create buffer and texture caches
+        _bufferCache = new CJBufferCache(_gl);
+        _textureCache = new CJTextureCache(_gl);
+
+        // Initialize OpenGL
+        _gl.clearColor(0f, 0f, 0f, 0f);
+        _gl.enable(_gl.DEPTH_TEST);
+        _gl.enable(_gl.CULL_FACE);
+
+        // Compile all shader programs up front to avoid hitch when shape first needs one
+        preloadPrograms();
+    }
+
+    /**
+     * Returns the canvas.
+     */
+    public HTMLCanvasElement getCanvas()  { return _canvas; }
+
+    /**
+     * Returns the WebGLRenderingContext (null if WebGL not available).
+     */
+    public WebGLRenderingContext getGL()  { return _gl; }
+
+    /**
+     * Returns the WebGL2RenderingContext (null if WebGL2 not enabled or not available).
+     */
+    public WebGL2RenderingContext getGL2()  { return _gl2; }
+
+    /**
+     * Returns the cache of WebGLBuffers for VertexArrays.
+     */
+    public CJBufferCache getBufferCache()  { return _bufferCache; }
+
+    /**
+     * Returns the cache of WebGLTextures for textures.
+     */
+    public CJTextureCache getTextureCache()  { return _textureCache; }
+
+    /**
+     * Returns the canvas width in pixels.
+     */
+    public int getCanvasPixWidth()  { return _canvasPixW; }
+
+    /**
+     * Returns the canvas height in pixels.
+     */
+    public int getCanvasPixHeight()  { return _canvasPixH; }
+
+    /**
+     * Sets the canvas size in pixels.
+     */
+    public void setCanvasPixSize(int aPixW, int aPixH)
+    {
+        if (aPixW == _canvasPixW && aPixH == _canvasPixH) return;
+        _canvasPixW = aPixW;
+        _canvasPixH = aPixH;
+        _canvas.setWidth(aPixW);
+        _canvas.setHeight(aPixH);
+    }
+
+    /**
+     * Makes sure canvas is at least given size in pixels, for renderers sharing context (called each frame). Canvas
+     * grows as needed and periodically shrinks back to the largest size required since the last check, so it doesn't
+     * stay at the size of the largest view ever rendered.
+     */
+    public void requireCanvasPixSize(int aPixW, int aPixH)
+    {
+        // Update max required size
+        _requiredPixW = Math.max(_requiredPixW, aPixW);
+        _requiredPixH = Math.max(_requiredPixH, aPixH);
+
+        // If canvas too small, grow
+        if (aPixW > _canvasPixW || aPixH > _canvasPixH)
+            setCanvasPixSize(Math.max(_canvasPixW, aPixW), Math.max(_canvasPixH, aPixH));
+
+        // If time to check, shrink to max required size and restart tracking
+        if (_frameNum - _shrinkCheckFrameNum >= SHRINK_CHECK_FRAME_COUNT) {
+            if (_requiredPixW < _canvasPixW || _requiredPixH < _canvasPixH)
+                setCanvasPixSize(_requiredPixW, _requiredPixH);
+            _requiredPixW = aPixW;
+            _requiredPixH = aPixH;
+            _shrinkCheckFrameNum = _frameNum;
+        }
+    }
+
+    /**
+     * Returns the next frame number.
+     */
+    public int nextFrameNum()  { return ++_frameNum; }
+
+    /**
+     * Returns the uniform/attribute locations for given program.
+     */
+    public ProgramLocations getProgramLocations(WebGLProgram aProgram)  { return _programLocations.get(aProgram); }
+
+    /**
+     * Returns a ShaderProgram for given name.
+     */
+    public WebGLProgram getProgram(String name)
+    {
+        // If shader exists, return
+        WebGLProgram program = _programs.get(name);
+        if (program != null)
+            return program;
+
+        // Create, set and return
+        long startTime = System.nanoTime();
+        program = _gl.createProgram();
+        WebGLShader vertexShader = getVertexShader(name);
+        WebGLShader fragmentShader = getFragmentShader(name);
+        _gl.attachShader(program, vertexShader);
+        _gl.attachShader(program, fragmentShader);
+
+        // Link Program
+        _gl.linkProgram(program);
+
+        // Validate
+        _gl.validateProgram(program);
+        //JSObject linkStatus = _gl.getProgramParameter(program, _gl.LINK_STATUS);
+        //if ( ! linkStatus) {
+        //    var info = gl.getProgramInfoLog(program);
+        //    throw 'Could not compile WebGL program. \n\n' + info;
+        //}
+
+        // Resolve uniform/attribute locations once
+        _programLocations.put(program, new ProgramLocations(program));
+
+        // Record compile/link time
+        double buildTime = (System.nanoTime() - startTime) / 1000000d;
+        _programBuildTimes.put(name, buildTime);
+
+        _programs.put(name, program);
+        return program;
+    }
+
+    /**
+     * Compiles and links all shader programs (called at init so first frames don't hitch).
+     */
+    public void preloadPrograms()
+    {
+        for (String name : SHADER_NAMES)
+            getProgram(name);
+    }
+
+    /**
+     * Returns the compile/link time in milliseconds for shader program with given name (or -1 if not yet built).
+     */
+    public double getProgramBuildTime(String aName)
+    {
+        Double buildTime = _programBuildTimes.get(aName);
+        return buildTime != null ? buildTime : -1;
+    }
+
+    /**
+     * Returns a VertexShader for given VertexArray.
+     */
+    public WebGLShader getVertexShader(String name)
+    {
+        // If shader exists, return
+        WebGLShader shader = _vertShaders.get(name);
+        if (shader != null)
+            return shader;
+
+        // Get shader source
+        String sourceText = getSourceText(_gl.VERTEX_SHADER, name);
+
+        // Create WebGLShader and set source
+        shader = _gl.createShader(_gl.VERTEX_SHADER);
+        _gl.shaderSource(shader, sourceText);
+
+        // Compile
+        _gl.compileShader(shader);
+
+        // Add to VertShaders map and return
+        _vertShaders.put(name, shader);
+        return shader;
+    }
+
+    /**
+     * Returns a Fragment Shader for given VertexArray.
+     */
+    public WebGLShader getFragmentShader(String name)
+    {
+        // If shader exists, return
+        WebGLShader shader = _fragShaders.get(name);
+        if (shader != null)
+            return shader;
+
+        // Get shader source
+        String sourceText = getSourceText(_gl.FRAGMENT_SHADER, name);
+
+        // Create WebGLShader and set source
+        shader = _gl.createShader(_gl.FRAGMENT_SHADER);
+        _gl.shaderSource(shader, sourceText);
+
+        // Compile
+        _gl.compileShader(shader);
+
+        // Add to VertShaders map and return
+        _fragShaders.put(name, shader);
+        return shader;
+    }
+
+    /**
+     * Returns the full text string of shader file.
+     */
+    public String getSourceText(int aType, String aName)
+    {
+        // If already loaded, just return
+        String sourcePath = "shaders/" + getSourceName(aType, aName);
+        String sourceText = _sourceTexts.get(sourcePath);
+        if (sourceText != null)
+            return sourceText;
+
+        // Load source text
+        sourceText = SnapUtils.getText(CJRenderer.class, sourcePath);
+        if (sourceText == null || sourceText.length() == 0) {
+            System.err.println("CJRenderContext.getSourceText: shader source not found: " + sourcePath);
+            return sourceText;
+        }
+
+        // Add to cache and return
+        _sourceTexts.put(sourcePath, sourceText);
+        return sourceText;
+    }
+
+    /**
+     * Returns the shader file name.
+     */
+    public String getSourceName(int aType, String aName)
+    {
+        // Handle Vertex Shaders:
+        if (aType == _gl.VERTEX_SHADER) {
+            switch (aName) {
+                case "Points_Color": return "Points_Color.vs";
+                case "Points_Colors": return "Points_Colors.vs";
+                case "Points_Color_Tex": return "Points_Color_Tex.vs";
+            }
+        }
+
+        // Handle Fragment Shaders
+        if (aType == _gl.FRAGMENT_SHADER) {
+            if (aName.equals("Points_Color_Tex"))
+                return "Points_Color_Tex.fs";
+            return "General.fs";
+        }
+
+        // Something went wrong
+        return null;
+    }
+
+    /**
+     * A class to hold the uniform and attribute locations of a WebGLProgram.
+     */
+    public class ProgramLocations {
+
+        // The uniform locations
+        protected WebGLUniformLocation _projMatrix, _viewMatrix, _vertColor, _fragTexture;
+
+        // The attribute locations (-1 if not in program)
+        protected int _vertPoint, _vertColorAttr, _vertTexCoord;
+
+        // The frame number of last camera matrices set
+        protected int _matrixFrameNum = -1;
+
+        // The last vertColor uniform value set
+        protected Color _color;
+
+        // Whether fragTexture uniform has been set
+        protected boolean _fragTextureSet;
+
+        /**
+         * Constructor: Resolves locations for given linked program.
+         */
+        protected ProgramLocations(WebGLProgram aProgram)
+        {
+            _projMatrix = _gl.getUniformLocation(aProgram, "projMatrix");
+            _viewMatrix = _gl.getUniformLocation(aProgram, "viewMatrix");
+            _vertColor = _gl.getUniformLocation(aProgram, "vertColor");
+            _fragTexture = _gl.getUniformLocation(aProgram, "fragTexture");
+            _vertPoint = _gl.getAttribLocation(aProgram, "vertPoint");
+            _vertColorAttr = _gl.getAttribLocation(aProgram, "vertColor");
+            _vertTexCoord = _gl.getAttribLocation(aProgram, "vertTexCoord");
+        }
+    }
+
+    /**
+     * Returns the context shared by renderers with SharedContextEnabled and given WebGL2 preference.
+     */
+    public static CJRenderContext getShared(boolean isWebGL2Enabled)
+    {
+        if (!isWebGL2Enabled) {
+            if (_sharedWebGL1 != null) return _sharedWebGL1;
+            return _sharedWebGL1 = new CJRenderContext(false);
+        }
+        if (_shared != null) return _shared;
+        return _shared = new CJRenderContext(true);
+    }
+}
@@ -2,38 +2,54 @@
  * Copyright (c) 2010, ReportMill Software. All rights reserved.
  */
 package snapcj;
+import snap.geom.Rect;
+import snap.geom.Shape;
 import snap.gfx.Color;
 import snap.gfx.Image;
 import snap.gfx.Painter;
 import snap.gfx3d.*;
-import snap.util.SnapUtils;
 import webapi.*;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * This Renderer subclass supports WebGL rendering.
  */
 public class CJRenderer extends Renderer {
 
+    // The render context (canvas, GL context and GL resources)
+    private CJRenderContext _context;
+
+    // Whether to use the render context shared by all renderers
+    private boolean  _sharedContextEnabled;
+
     // The canvas
     private HTMLCanvasElement _canvas;
 
     // The WebGLRenderingContext
     protected WebGLRenderingContext _gl;
 
-    // A map of shader programs
-    private Map<String,WebGLProgram>  _programs = new HashMap<>();
+    // The WebGL2RenderingContext (null if WebGL2 not enabled or not available)
+    protected WebGL2RenderingContext _gl2;
+
+    // Whether to use WebGL2 if available
+    private boolean  _webGL2Enabled = true;
 
-    // A map of vertex shaders
-    private Map<String, WebGLShader>  _vertShaders = new HashMap<>();
+    // The names of all shader programs
+    public static final String[] SHADER_NAMES = CJRenderContext.SHADER_NAMES;
 
-    // A map of fragment shaders
-    private Map<String,WebGLShader>  _fragShaders = new HashMap<>();
+    // Constants for frustum test results
+    private static final int FRUSTUM_OUTSIDE = 0;
+    private static final int FRUSTUM_INTERSECTS = 1;
+    private static final int FRUSTUM_INSIDE = 2;
 
-    // A map of textures
-    private Map<Texture, WebGLTexture>  _textures = new HashMap<>();
+    // The cache of WebGLTextures for textures
+    private CJTextureCache  _textureCache;
+
+    // The cache of WebGLBuffers for VertexArrays
+    private CJBufferCache  _bufferCache;
 
     // Canvas size in points
     private int  _canvasW, _canvasH;
@@ -41,37 +57,98 @@ public class CJRenderer extends Renderer {
     // Wrapper image
     private Image _image;
 
+    // The camera matrices for current frame (shared by all draws in frame)
+    private Float32Array  _projMatrix4fv, _viewMatrix4fv;
+
+    // The current frame number
+    private int  _frameNum;
+
+    // Whether to skip WebGL render when scene and camera are unchanged
+    private boolean  _renderOnDemand;
+
+    // Whether scene needs render (set by scene prop changes, resize or setNeedsRender())
+    private boolean  _needsRender = true;
+
+    // The camera matrices and scene signature of last rendered frame
+    private double[]  _lastProjMatrix, _lastViewMatrix;
+    private int  _lastSceneSignature;
+
+    // A copy of last rendered frame (WebGL drawing buffer isn't preserved between frames)
+    private CJImage  _lastFrameImage;
+
+    // The number of frames rendered and skipped
+    private int  _renderedFrameCount, _skippedFrameCount;
+
+    // The queue of items to render for current frame
+    private List<RenderItem>  _renderQueue = new ArrayList<>();
+
+    // Whether to merge compatible non-indexed, untextured VertexArrays into combined buffers
+    private boolean  _mergeEnabled = true;
+
+    // Whether to sort opaque items in render queue by state
+    private boolean  _stateSortEnabled = true;
+
+    // The VertexArrays of current run of mergeable items
+    private List<VertexArray>  _runArrays = new ArrayList<>();
+
+    // The current GL state (to avoid redundant state changes)
+    private WebGLProgram  _currentProgram;
+    private WebGLTexture  _boundTexture;
+    private boolean  _cullFaceEnabled;
+    private boolean[]  _attribEnabled = new boolean[8];
+
+    // Whether to show WebGL canvas as a layer over window canvas instead of copying frame to painter (opt-in)
+    private boolean  _overlayEnabled;
+
+    // The window currently showing WebGL canvas as overlay
+    private CJWindow  _overlayWindow;
+
+    // Whether to skip shapes whose bounds are outside camera view frustum
+    private boolean  _cullingEnabled = true;
+
+    // The scene to clip matrix for current frame (column-major, for frustum culling)
+    private double[]  _sceneToClip = new double[16];
+
+    // The number of shapes culled and drawn for current frame and last frame
+    private int  _culledShapeCount, _drawnShapeCount;
+    private int  _lastCulledShapeCount, _lastDrawnShapeCount;
+
+    // The number of draw calls and state changes for current frame and last frame
+    private int  _drawCallCount, _stateChangeCount;
+    private int  _lastDrawCallCount, _lastStateChangeCount;
+
     /**
      * Constructor.
      */
     public CJRenderer(Camera aCamera)
     {
         super(aCamera);
+
+        // Mark needs render on any scene prop change
+        getScene().addPropChangeListener(pc -> _needsRender = true);
     }
 
     /**
-     * Initialize canvas and context (HTMLCanvasElement and WebGLRenderingContext).
+     * Initialize render context (HTMLCanvasElement and WebGLRenderingContext).
      */
-    private void initCanvas(CJPainter aPainter)
+    private void initContext(CJPainter aPainter)
     {
-        // If Canvas already created, just bail (shouldn't be possible)
-        if (_canvas != null) return;
-
-        // Create canvas and size
-        _canvas = (HTMLCanvasElement) HTMLDocument.getDocument().createElement("canvas");
+        // If context already set, just bail (shouldn't be possible)
+        if (_context != null) return;
+
+        // Get shared context or create new one
+        _context = _sharedContextEnabled ? CJRenderContext.getShared(_webGL2Enabled) : new CJRenderContext(_webGL2Enabled);
+        _canvas = _context.getCanvas();
+        _gl2 = _context.getGL2();
+        _bufferCache = _context.getBufferCache();
+        _textureCache = _context.getTextureCache();
+        _cullFaceEnabled = true;
+
+        // Size canvas
         resizeCanvas(aPainter);
 
-        // Get WebGL context (if missing, complain and return)
-        _gl = (WebGLRenderingContext) _canvas.getContext("webgl");
-        if (_gl == null) {
-            System.err.println("CJRenderer.initRenderer: canvas getContext() returned null");
-            return;
-        }
-
-        // Initialize OpenGL
-        _gl.clearColor(0f, 0f, 0f, 0f);
-        _gl.enable(_gl.DEPTH_TEST);
-        _gl.enable(_gl.CULL_FACE);
+        // Set GL (if missing, just return)
+        _gl = _context.getGL();
     }
 
     /**
@@ -92,21 +169,173 @@ public class CJRenderer extends Renderer {
         int scale = aPainter._scale;
         int canvasPixW = _canvasW * scale;
         int canvasPixH = _canvasH * scale;
+        _lastFrameImage = null;
+        _needsRender = true;
+
+        // If shared context, just return (canvas size is required and viewport set each frame)
+        if (_sharedContextEnabled)
+            return;
 
         // Set Canvas size in points and pixels
-        _canvas.setWidth(canvasPixW);
-        _canvas.setHeight(canvasPixH);
+        _context.setCanvasPixSize(canvasPixW, canvasPixH);
         _canvas.getStyle().setProperty("width", _canvasW + "px");
         _canvas.getStyle().setProperty("height", _canvasH + "px");
 
         // If Context already around, resize viewport
-        if (_gl != null)
-            _gl.viewport(0, 0, canvasPixW, canvasPixH);
+        if (_context.getGL() != null)
+            _context.getGL().viewport(0, 0, canvasPixW, canvasPixH);
 
         // Set image
         _image = new CJImage(_canvas, _canvasW, _canvasH, aPainter._scale);
     }
 
+    /**
+     * Returns whether to use the render context shared by all renderers (must be set before first render).
+     * A shared context renders each renderer's view in turn on one hidden canvas and copies the pixels for painting.
+     */
+    public boolean isSharedContextEnabled()  { return _sharedContextEnabled; }
+
+    /**
+     * Sets whether to use the render context shared by all renderers (must be set before first render).
+     */
+    public void setSharedContextEnabled(boolean aValue)  { _sharedContextEnabled = aValue; }
+
+    /**
+     * Returns the render context (null until first render).
+     */
+    public CJRenderContext getContext()  { return _context; }
+
+    /**
+     * Returns whether to use WebGL2 if available (must be set before first render).
+     */
+    public boolean isWebGL2Enabled()  { return _webGL2Enabled; }
+
+    /**
+     * Sets whether to use WebGL2 if available (must be set before first render).
+     */
+    public void setWebGL2Enabled(boolean aValue)  { _webGL2Enabled = aValue; }
+
+    /**
+     * Returns whether renderer is using a WebGL2 context.
+     */
+    public boolean isWebGL2()  { return _gl2 != null; }
+
+    /**
+     * Returns the cache of WebGLBuffers for VertexArrays (null until first render).
+     */
+    public CJBufferCache getBufferCache()  { return _bufferCache; }
+
+    /**
+     * Returns the cache of WebGLTextures for textures (null until first render).
+     */
+    public CJTextureCache getTextureCache()  { return _textureCache; }
+
+    /**
+     * Returns whether renderer skips WebGL render when scene and camera are unchanged.
+     */
+    public boolean isRenderOnDemand()  { return _renderOnDemand; }
+
+    /**
+     * Sets whether renderer skips WebGL render when scene and camera are unchanged.
+     */
+    public void setRenderOnDemand(boolean aValue)
+    {
+        _renderOnDemand = aValue;
+        _lastFrameImage = null;
+        _needsRender = true;
+    }
+
+    /**
+     * Forces next renderAndPaint() to render (for scene changes not reported as prop changes).
+     */
+    public void setNeedsRender()  { _needsRender = true; }
+
+    /**
+     * Returns the number of frames rendered.
+     */
+    public int getRenderedFrameCount()  { return _renderedFrameCount; }
+
+    /**
+     * Returns the number of frames skipped because scene and camera were unchanged.
+     */
+    public int getSkippedFrameCount()  { return _skippedFrameCount; }
+
+    /**
+     * Returns whether to merge compatible non-indexed, untextured VertexArrays into combined buffers.
+     */
+    public boolean isMergeEnabled()  { return _mergeEnabled; }
+
+    /**
+     * Sets whether to merge compatible non-indexed, untextured VertexArrays into combined buffers.
+     */
+    public void setMergeEnabled(boolean aValue)  { _mergeEnabled = aValue; }
+
+    /**
+     * Returns whether to sort opaque items in render queue by state (shader, double-sided, color).
+     */
+    public boolean isStateSortEnabled()  { return _stateSortEnabled; }
+
+    /**
+     * Sets whether to sort opaque items in render queue by state. Translucent items always keep submission order, as
+     * do opaque items with same state. Scenes that rely on submission order for coplanar opaque geometry (decals)
+     * can turn this off.
+     */
+    public void setStateSortEnabled(boolean aValue)  { _stateSortEnabled = aValue; }
+
+    /**
+     * Returns whether to show WebGL canvas as a layer over window canvas instead of copying frame to painter.
+     */
+    public boolean isOverlayEnabled()  { return _overlayEnabled; }
+
+    /**
+     * Sets whether to show WebGL canvas as a layer over window canvas instead of copying frame to painter (off by
+     * default). Since the overlay sits above the window canvas, anything painted over the camera view after render
+     * (later siblings, paintFront decorations, selection or focus rings) is hidden. Only enable for camera views
+     * that nothing is painted over.
+     */
+    public void setOverlayEnabled(boolean aValue)
+    {
+        if (aValue == _overlayEnabled) return;
+        _overlayEnabled = aValue;
+        if (!aValue)
+            hideOverlay();
+        _needsRender = true;
+    }
+
+    /**
+     * Returns whether to skip shapes whose bounds are outside camera view frustum.
+     */
+    public boolean isCullingEnabled()  { return _cullingEnabled; }
+
+    /**
+     * Sets whether to skip shapes whose bounds are outside camera view frustum.
+     */
+    public void setCullingEnabled(boolean aValue)
+    {
+        _cullingEnabled = aValue;
+        _needsRender = true;
+    }
+
+    /**
+     * Returns the number of shapes culled in last rendered frame (culled parents count once).
+     */
+    public int getCulledShapeCount()  { return _lastCulledShapeCount; }
+
+    /**
+     * Returns the number of shapes drawn in last rendered frame.
+     */
+    public int getDrawnShapeCount()  { return _lastDrawnShapeCount; }
+
+    /**
+     * Returns the number of draw calls in last rendered frame.
+     */
+    public int getDrawCallCount()  { return _lastDrawCallCount; }
+
+    /**
+     * Returns the number of GL state changes in last rendered frame.
+     */
+    public int getStateChangeCount()  { return _lastStateChangeCount; }
+
     /**
      * Override to return name.
      */
@@ -126,7 +355,7 @@ public class CJRenderer extends Renderer {
 
         // Make sure OpenGL is initialized
         if (_gl == null) {
-            initCanvas(painter);
+            initContext(painter);
             if (_gl == null)
                 return;
         }
@@ -134,182 +363,525 @@ public class CJRenderer extends Renderer {
         // Make sure canvas is still right size
         else resizeCanvas(painter);
 
-        // Get GL and clear
-        _gl.clear(_gl.COLOR_BUFFER_BIT | _gl.DEPTH_BUFFER_BIT);
+        // If Overlay enabled (and context not shared), try to show WebGL canvas over window canvas
+        boolean isOverlay = _overlayEnabled && !_sharedContextEnabled && showOverlay(aPainter, painter);
 
-        // Iterate over scene shapes and render each
+        // If RenderOnDemand and nothing changed since last frame, just paint last frame and return
+        Camera camera = getCamera();
+        double[] projMatrix = camera.getCameraToClipArray();
+        double[] viewMatrix = camera.getSceneToCameraArray();
         Scene3D scene = getScene();
+        if (_renderOnDemand) {
+            int sceneSignature = getSceneSignature(scene);
+            boolean isChanged = _needsRender || !isOverlay && _lastFrameImage == null || sceneSignature != _lastSceneSignature ||
+                !Arrays.equals(projMatrix, _lastProjMatrix) || !Arrays.equals(viewMatrix, _lastViewMatrix);
+            if (!isChanged) {
+                _skippedFrameCount++;
+                if (!isOverlay)
+                    aPainter.drawImage(_lastFrameImage, 0, 0);
+                return;
+            }
+
+            // Update last frame info
+            _lastProjMatrix = projMatrix.clone();
+            _lastViewMatrix = viewMatrix.clone();
+            _lastSceneSignature = sceneSignature;
+        }
+
+        // If shared context, make sure canvas is at least view size, set viewport and clear just view area
+        if (_sharedContextEnabled) {
+            int scale = painter._scale;
+            _context.requireCanvasPixSize(_canvasW * scale, _canvasH * scale);
+            _gl.viewport(0, 0, _canvasW * scale, _canvasH * scale);
+            _gl.enable(_gl.SCISSOR_TEST);
+            _gl.scissor(0, 0, _canvasW * scale, _canvasH * scale);
+            _gl.clear(_gl.COLOR_BUFFER_BIT | _gl.DEPTH_BUFFER_BIT);
+            _gl.disable(_gl.SCISSOR_TEST);
+        }
+
+        // Otherwise, clear
+        else _gl.clear(_gl.COLOR_BUFFER_BIT | _gl.DEPTH_BUFFER_BIT);
+        _needsRender = false;
+
+        // Get camera matrices once for frame
+        _projMatrix4fv = new Float32Array(projMatrix);
+        _viewMatrix4fv = new Float32Array(viewMatrix);
+        multiplyMatrices(projMatrix, viewMatrix, _sceneToClip);
+        _frameNum = _context.nextFrameNum();
+        _renderedFrameCount++;
+
+        // Reset GL state tracking and counters (program/texture may have been changed outside render)
+        _currentProgram = null;
+        _boundTexture = null;
+        _drawCallCount = _stateChangeCount = 0;
+        _culledShapeCount = _drawnShapeCount = 0;
+
+        // Collect visible scene shapes in render queue, then render queue
         renderShape3D(scene);
+        renderQueue();
+        _lastDrawCallCount = _drawCallCount;
+        _lastStateChangeCount = _stateChangeCount;
+        _lastCulledShapeCount = _culledShapeCount;
+        _lastDrawnShapeCount = _drawnShapeCount;
+
+        // If overlay, browser composites WebGL canvas directly (last frame copy is now stale)
+        if (isOverlay) {
+            _lastFrameImage = null;
+            return;
+        }
+
+        // If shared context, copy frame now (other renderers will overwrite shared canvas before painter flush)
+        if (_sharedContextEnabled) {
+            int scale = painter._scale;
+            int sharedW = _context.getCanvasPixWidth() / scale, sharedH = _context.getCanvasPixHeight() / scale;
+            if (_image == null || _image.getWidth() != sharedW || _image.getHeight() != sharedH || _image.getDpiX() != scale * 72)
+                _image = new CJImage(_canvas, sharedW, sharedH, scale);
+            copyFrameToLastFrameImage();
+            aPainter.drawImage(_lastFrameImage, 0, 0);
+            return;
+        }
 
         // Paint WebGL canvas to painter
         aPainter.drawImage(_image, 0, 0);
+
+        // If RenderOnDemand, copy frame for reuse
+        if (_renderOnDemand)
+            copyFrameToLastFrameImage();
+    }
+
+    /**
+     * Shows WebGL canvas as overlay over window canvas, if painter is window painter with simple translation and
+     * no clipping of camera view. Otherwise hides overlay and returns false (to fall back to painting frame).
+     * Content painted over the camera view can't be detected here, so callers opt in with setOverlayEnabled().
+     */
+    private boolean showOverlay(Painter aPainter, CJPainter aCJPainter)
+    {
+        // If painter not painting window, just return
+        CJWindow window = aCJPainter.getWindow();
+        if (window == null) {
+            hideOverlay();
+            return false;
+        }
+
+        // If transform is not simple translation, hide overlay and return
+        double[] m = aPainter.getTransform().getMatrix();
+        if (m[0] != 1 || m[1] != 0 || m[2] != 0 || m[3] != 1) {
+            hideOverlay();
+            return false;
+        }
+
+        // If clip doesn't contain camera view bounds, hide overlay and return
+        Shape clip = aPainter.getClip();
+        if (clip != null) {
+            Rect clipBounds = clip.getBounds();
+            if (clipBounds.x > 0 || clipBounds.y > 0 || clipBounds.getMaxX() < _canvasW || clipBounds.getMaxY() < _canvasH) {
+                hideOverlay();
+                return false;
+            }
+        }
+
+        // If window changed, hide in old window
+        if (window != _overlayWindow)
+            hideOverlay();
+
+        // Show canvas as overlay in window at view bounds
+        Rect viewBounds = new Rect(Math.round(m[4]), Math.round(m[5]), _canvasW, _canvasH);
+        window.showOverlay(_canvas, viewBounds);
+        _overlayWindow = window;
+        return true;
+    }
+
+    /**
+     * Hides WebGL canvas overlay, if showing.
+     */
+    private void hideOverlay()
+    {
+        if (_overlayWindow == null) return;
+        _overlayWindow.hideOverlay(_canvas);
+        _overlayWindow = null;
+    }
+
+    /**
+     * Copies the current WebGL frame to LastFrameImage.
+     */
+    private void copyFrameToLastFrameImage()
+    {
+        // Create LastFrameImage if needed
+        if (_lastFrameImage == null)
+            _lastFrameImage = new CJImage(_canvasW, _canvasH, true, _image.getDpiX() / 72);
+
+        // Clear and copy current frame (from bottom-left of canvas, where GL viewport is)
+        Painter painter = _lastFrameImage.getPainter();
+        painter.clearRect(0, 0, _canvasW, _canvasH);
+        double srcY = _image.getHeight() - _canvasH;
+        painter.drawImage(_image, 0, srcY, _canvasW, _canvasH, 0, 0, _canvasW, _canvasH);
+    }
+
+    /**
+     * Returns a signature for visible shapes and their triangle arrays (changes when shape geometry is rebuilt or
+     * a texture becomes ready).
+     */
+    private int getSceneSignature(Shape3D aShape3D)
+    {
+        // If shape not visible, return zero
+        if (!aShape3D.isVisible())
+            return 0;
+
+        // Handle Parent: Combine child signatures
+        int signature = System.identityHashCode(aShape3D);
+        if (aShape3D instanceof ParentShape) {
+            Shape3D[] children = ((ParentShape) aShape3D).getChildren();
+            for (Shape3D child : children)
+                signature = signature * 31 + getSceneSignature(child);
+        }
+
+        // Handle child: Combine triangle arrays and texture readiness (so frame rendered before texture loaded is redone)
+        else {
+            for (VertexArray triangleArray = aShape3D.getTriangleArray(); triangleArray != null; triangleArray = triangleArray.getNext()) {
+                signature = signature * 31 + System.identityHashCode(triangleArray);
+                signature = signature * 31 + (triangleArray.isTextureSetAndReady() ? 1 : 0);
+            }
+        }
+
+        // Return
+        return signature;
     }
 
     /**
-     * Renders a Shape3D.
+     * Adds the triangle arrays of given Shape3D (and children) to render queue.
      */
     protected void renderShape3D(Shape3D aShape3D)
+    {
+        renderShape3D(aShape3D, !_cullingEnabled);
+    }
+
+    /**
+     * Adds the triangle arrays of given Shape3D (and children) to render queue, skipping shapes outside view frustum.
+     */
+    private void renderShape3D(Shape3D aShape3D, boolean isInsideFrustum)
     {
         // If shape not visible, just return
         if (!aShape3D.isVisible())
             return;
 
+        // If not known to be inside frustum, check bounds (if outside, just return)
+        if (!isInsideFrustum) {
+            int frustumTest = getFrustumTest(aShape3D.getBounds3D());
+            if (frustumTest == FRUSTUM_OUTSIDE) {
+                _culledShapeCount++;
+                return;
+            }
+            isInsideFrustum = frustumTest == FRUSTUM_INSIDE;
+        }
+
         // Handle Parent: Iterate over children and recurse
         if (aShape3D instanceof ParentShape) {
             ParentShape parentShape = (ParentShape) aShape3D;
             Shape3D[] children = parentShape.getChildren();
             for (Shape3D child : children)
-                renderShape3D(child);
+                renderShape3D(child, isInsideFrustum);
         }
 
-        // Handle child: Get VertexArray and render
+        // Handle child: Get VertexArray and add to render queue
         else {
             VertexArray triangleArray = aShape3D.getTriangleArray();
             while (triangleArray != null) {
-                renderTriangleArray(triangleArray);
+                _renderQueue.add(new RenderItem(triangleArray, _renderQueue.size()));
                 triangleArray = triangleArray.getNext();
             }
+            _drawnShapeCount++;
         }
     }
 
     /**
-     * Renders a VertexBuffer of triangles.
+     * Returns whether given bounds are outside, intersecting or inside camera view frustum (FRUSTUM_XXX constants).
      */
-    protected void renderTriangleArray(VertexArray aTriangleArray)
+    private int getFrustumTest(Bounds3D aBounds)
     {
-        // If VertexArray.DoubleSided, disable face culling
-        boolean doubleSided = aTriangleArray.isDoubleSided();
-        if (doubleSided)
-            _gl.disable(_gl.CULL_FACE);
+        // If no bounds, assume intersecting
+        if (aBounds == null)
+            return FRUSTUM_INTERSECTS;
+
+        // Iterate over 8 box corners and get clip coords to check against each clip plane (-w <= x,y,z <= w)
+        double[] m = _sceneToClip;
+        int outsideMask = 0x3F;
+        boolean allInside = true;
+        for (int i = 0; i < 8; i++) {
+
+            // Get corner and clip coords
+            double x = (i & 1) == 0 ? aBounds.getMinX() : aBounds.getMaxX();
+            double y = (i & 2) == 0 ? aBounds.getMinY() : aBounds.getMaxY();
+            double z = (i & 4) == 0 ? aBounds.getMinZ() : aBounds.getMaxZ();
+            double clipX = m[0] * x + m[4] * y + m[8] * z + m[12];
+            double clipY = m[1] * x + m[5] * y + m[9] * z + m[13];
+            double clipZ = m[2] * x + m[6] * y + m[10] * z + m[14];
+            double clipW = m[3] * x + m[7] * y + m[11] * z + m[15];
+
+            // Get mask of planes this corner is outside of
+            int cornerMask = (clipX < -clipW ? 1 : 0) | (clipX > clipW ? 2 : 0) | (clipY < -clipW ? 4 : 0) |
+                (clipY > clipW ? 8 : 0) | (clipZ < -clipW ? 16 : 0) | (clipZ > clipW ? 32 : 0);
+            outsideMask &= cornerMask;
+            if (cornerMask != 0)
+                allInside = false;
+        }
 
-        // Get ShaderProgram
-        WebGLProgram program = getProgram(aTriangleArray);
+        // If all corners outside any one plane, return outside
+        if (outsideMask != 0)
+            return FRUSTUM_OUTSIDE;
+        return allInside ? FRUSTUM_INSIDE : FRUSTUM_INTERSECTS;
+    }
 
-        // Use this program
-        _gl.useProgram(program);
+    /**
+     * Multiplies given column-major 4x4 matrices (A * B) into given result array.
+     */
+    private static void multiplyMatrices(double[] a, double[] b, double[] result)
+    {
+        for (int col = 0; col < 4; col++) {
+            for (int row = 0; row < 4; row++) {
+                double sum = 0;
+                for (int k = 0; k < 4; k++)
+                    sum += a[k * 4 + row] * b[col * 4 + k];
+                result[col * 4 + row] = sum;
+            }
+        }
+    }
 
-        // Set program Projection Matrix (was program.setProjectionMatrix(projMatrix) )
-        Camera camera = getCamera();
-        double[] projMatrix = camera.getCameraToClipArray();
-        Float32Array matrix4fv = new Float32Array(projMatrix);
-        WebGLUniformLocation projMatrixUniform = _gl.getUniformLocation(program, "projMatrix");
-        _gl.uniformMatrix4fv(projMatrixUniform, false, matrix4fv);
-
-        // Set program ViewMatrix (was program.setViewMatrix(viewMatrix) )
-        double[] sceneToCamera = camera.getSceneToCameraArray();
-        Float32Array viewMatrix4fv = new Float32Array(sceneToCamera);
-        WebGLUniformLocation viewMatrixUniform = _gl.getUniformLocation(program, "viewMatrix");
-        _gl.uniformMatrix4fv(viewMatrixUniform, false, viewMatrix4fv);
-
-        // Create/bind pointBuffer
-        WebGLBuffer pointBuffer = _gl.createBuffer();
-        _gl.bindBuffer(_gl.ARRAY_BUFFER, pointBuffer);
-
-        // Buffer pointArray
-        float[] pointArray = aTriangleArray.getPointArray();
-        _gl.bufferData(_gl.ARRAY_BUFFER, new Float32Array(pointArray), _gl.STATIC_DRAW);
-
-        // Get, configure and enable vertPoint attribute
-        int pointsAttrLoc = _gl.getAttribLocation(program, "vertPoint");
-        _gl.vertexAttribPointer(pointsAttrLoc, 3, _gl.FLOAT, false, 3 * 4, 0);
-        _gl.enableVertexAttribArray(pointsAttrLoc);
-
-        // If color array present, set colors
-        WebGLBuffer colorBuffer = null;
-        int colorAttrLoc = 0;
-        if (aTriangleArray.isColorArraySet()) {
-
-            // Create/bind colorBuffer
-            colorBuffer = _gl.createBuffer();
-            _gl.bindBuffer(_gl.ARRAY_BUFFER, colorBuffer);
+    /**
+     * Sorts opaque items in render queue by state and renders items, drawing compatible consecutive items from merged
+     * group buffers.
+     */
+    protected void renderQueue()
+    {
+        // Sort opaque items by shader, double-sided and color, followed by translucent items (submission order)
+        if (_stateSortEnabled)
+            _renderQueue.sort(RenderItem::compareTo);
+
+        // Iterate over items
+        for (int i = 0, iMax = _renderQueue.size(); i < iMax; ) {
+            RenderItem item = _renderQueue.get(i);
+
+            // If mergeable, get run of consecutive items with same state and render as ranges of group merged buffers
+            if (_mergeEnabled && item.isMergeable()) {
+                int runEnd = i + 1;
+                while (runEnd < iMax && item.canMergeWith(_renderQueue.get(runEnd)))
+                    runEnd++;
+                _runArrays.clear();
+                for (int j = i; j < runEnd; j++)
+                    _runArrays.add(_renderQueue.get(j)._vertexArray);
+                renderTriangleArray(item, _bufferCache.getMergedBuffers(item.getMergeKey(), _runArrays));
+                i = runEnd;
+            }
 
-            // Buffer colorArray
-            float[] colorArray = aTriangleArray.getColorArray();
-            _gl.bufferData(_gl.ARRAY_BUFFER, new Float32Array(colorArray), _gl.STATIC_DRAW);
+            // Otherwise, render item buffers
+            else {
+                renderTriangleArray(item, _bufferCache.getBuffers(item._vertexArray));
+                i++;
+            }
+        }
 
-            // Get, configure and enable vertColor attribute
-            colorAttrLoc = _gl.getAttribLocation(program, "vertColor");
-            _gl.vertexAttribPointer(colorAttrLoc, 3, _gl.FLOAT, false, 3 * 4, 0);
-            _gl.enableVertexAttribArray(colorAttrLoc);
+        // Unbind VAO, disable attributes and restore face culling (buffers stay resident in cache)
+        if (_gl2 != null)
+            _bufferCache.bindVertexArray(null);
+        for (int i = 0; i < _attribEnabled.length; i++)
+            setAttribEnabled(i, false);
+        setCullFaceEnabled(true);
+        _renderQueue.clear();
+    }
+
+    /**
+     * Renders a VertexArray of triangles.
+     */
+    protected void renderTriangleArray(VertexArray aTriangleArray)
+    {
+        renderTriangleArray(new RenderItem(aTriangleArray, 0), _bufferCache.getBuffers(aTriangleArray));
+    }
+
+    /**
+     * Renders given buffers of triangles with state of given render item, only issuing state that changed.
+     */
+    protected void renderTriangleArray(RenderItem anItem, CJBufferCache.VertexBuffers buffers)
+    {
+        // If VertexArray.DoubleSided, disable face culling
+        setCullFaceEnabled(!anItem._doubleSided);
+
+        // Get ShaderProgram and locations
+        WebGLProgram program = getProgram(anItem._shaderKey);
+        CJRenderContext.ProgramLocations locs = _context.getProgramLocations(program);
+
+        // Use this program
+        if (program != _currentProgram) {
+            _gl.useProgram(program);
+            _currentProgram = program;
+            _stateChangeCount++;
         }
 
-        // Otherwise, set VertexArray color (was program.setColor(color) )
-        else {
-            Color color = aTriangleArray.getColor(); if (color == null) color = Color.RED;
-            WebGLUniformLocation vertColorLoc = _gl.getUniformLocation(program, "vertColor");
-            _gl.uniform3f(vertColorLoc, (float) color.getRed(), (float) color.getGreen(), (float) color.getBlue());
+        // If program doesn't have this frame's camera matrices, set Projection/View matrices (uniforms persist per program)
+        if (locs._matrixFrameNum != _frameNum) {
+            _gl.uniformMatrix4fv(locs._projMatrix, false, _projMatrix4fv);
+            _gl.uniformMatrix4fv(locs._viewMatrix, false, _viewMatrix4fv);
+            locs._matrixFrameNum = _frameNum;
+            _stateChangeCount++;
         }
 
-        // Set VertexShader texture coords
-        WebGLBuffer texCoordBuffer = null;
-        int texCoordAttrLoc = 0;
-        if (aTriangleArray.isTextureSetAndReady()) {
+        // Bind vertex attributes: If WebGL2, bind cached vertex array object, otherwise set attribute pointers
+        if (_gl2 != null)
+            bindVertexArrayObject(anItem, buffers, locs);
+        else bindVertexAttributes(anItem, buffers, locs);
+
+        // If no color array, set VertexArray color if changed (was program.setColor(color) )
+        if (buffers.getColorBuffer() == null) {
+            Color color = anItem._color;
+            if (!color.equals(locs._color)) {
+                _gl.uniform3f(locs._vertColor, (float) color.getRed(), (float) color.getGreen(), (float) color.getBlue());
+                locs._color = color;
+                _stateChangeCount++;
+            }
+        }
 
-            // Get Texture, WebGLTexture
-            Texture texture = aTriangleArray.getTexture();
-            WebGLTexture wglTexture = getTexture(texture);
+        // If texture set, bind texture
+        if (anItem._texture != null && buffers.getTexCoordBuffer() != null) {
 
-            // Bind and activate texture
-            _gl.bindTexture(_gl.TEXTURE_2D, wglTexture);
-            _gl.activeTexture(_gl.TEXTURE0);
+            // Get WebGLTexture and bind if changed
+            WebGLTexture wglTexture = getTexture(anItem._texture);
+            if (wglTexture != _boundTexture) {
+                _gl.activeTexture(_gl.TEXTURE0);
+                _gl.bindTexture(_gl.TEXTURE_2D, wglTexture);
+                _boundTexture = wglTexture;
+                _stateChangeCount++;
+            }
 
             // Map texture
-            WebGLUniformLocation textureUniform = _gl.getUniformLocation(program, "fragTexture");
-            _gl.uniform1i(textureUniform, 0);
+            if (!locs._fragTextureSet) {
+                _gl.uniform1i(locs._fragTexture, 0);
+                locs._fragTextureSet = true;
+            }
+        }
 
-            // Create/bind texCoordBuffer
-            texCoordBuffer = _gl.createBuffer();
-            _gl.bindBuffer(_gl.ARRAY_BUFFER, texCoordBuffer);
+        // If IndexArray set, draw elements (index buffer is bound by attributes/VAO)
+        if (buffers.getIndexBuffer() != null)
+            _gl.drawElements(_gl.TRIANGLES, buffers.getIndexCount(), buffers.getIndexType(), 0);
+
+        // If merged buffers, draw ranges of members in this draw
+        else if (buffers instanceof CJBufferCache.MergedVertexBuffers) {
+            CJBufferCache.MergedVertexBuffers mergedBuffers = (CJBufferCache.MergedVertexBuffers) buffers;
+            int rangeCount = mergedBuffers.getRangeCount();
+            for (int i = 0; i < rangeCount; i++)
+                _gl.drawArrays(_gl.TRIANGLES, mergedBuffers.getRangeStart(i), mergedBuffers.getRangeVertexCount(i));
+            _drawCallCount += rangeCount - 1;
+        }
 
-            // Buffer texCoordArray
-            float[] texCoordArray = aTriangleArray.getTexCoordArray();
-            _gl.bufferData(_gl.ARRAY_BUFFER, new Float32Array(texCoordArray), _gl.STATIC_DRAW);
+        // Run program
+        else _gl.drawArrays(_gl.TRIANGLES, 0, buffers.getVertexCount());
+        _drawCallCount++;
+    }
 
-            // Get, configure and enable vertTexCoord attribute
-            texCoordAttrLoc = _gl.getAttribLocation(program, "vertTexCoord");
-            _gl.vertexAttribPointer(texCoordAttrLoc, 2, _gl.FLOAT, false, 2 * 4, 0);
-            _gl.enableVertexAttribArray(texCoordAttrLoc);
+    /**
+     * Binds buffers to vertex attributes and enables them (disabling others) for WebGL1.
+     */
+    private void bindVertexAttributes(RenderItem anItem, CJBufferCache.VertexBuffers buffers, CJRenderContext.ProgramLocations locs)
+    {
+        // Bind pointBuffer, configure and enable vertPoint attribute
+        int attribMask = 0;
+        _gl.bindBuffer(_gl.ARRAY_BUFFER, buffers.getPointBuffer());
+        _gl.vertexAttribPointer(locs._vertPoint, 3, _gl.FLOAT, false, 3 * 4, 0);
+        attribMask |= 1 << locs._vertPoint;
+
+        // If color array present, bind colorBuffer, configure and enable vertColor attribute
+        WebGLBuffer colorBuffer = buffers.getColorBuffer();
+        if (colorBuffer != null) {
+            _gl.bindBuffer(_gl.ARRAY_BUFFER, colorBuffer);
+            _gl.vertexAttribPointer(locs._vertColorAttr, 3, _gl.FLOAT, false, 3 * 4, 0);
+            attribMask |= 1 << locs._vertColorAttr;
         }
 
-        // Set IndexArray
-        WebGLBuffer indexBuffer = null;
-        if (aTriangleArray.isIndexArraySet()) {
+        // If texture set, bind texCoordBuffer, configure and enable vertTexCoord attribute
+        WebGLBuffer texCoordBuffer = buffers.getTexCoordBuffer();
+        if (anItem._texture != null && texCoordBuffer != null) {
+            _gl.bindBuffer(_gl.ARRAY_BUFFER, texCoordBuffer);
+            _gl.vertexAttribPointer(locs._vertTexCoord, 2, _gl.FLOAT, false, 2 * 4, 0);
+            attribMask |= 1 << locs._vertTexCoord;
+        }
 
-            // Create/bind indexBuffer
-            indexBuffer = _gl.createBuffer();
-            _gl.bindBuffer(_gl.ELEMENT_ARRAY_BUFFER, indexBuffer);
+        // Enable needed attributes and disable others
+        for (int i = 0; i < _attribEnabled.length; i++)
+            setAttribEnabled(i, (attribMask & (1 << i)) != 0);
 
-            // Buffer indexArray
-            int[] indexArray = aTriangleArray.getIndexArray();
-            _gl.bufferData(_gl.ELEMENT_ARRAY_BUFFER, new Uint16Array(indexArray), _gl.STATIC_DRAW);
+        // If index buffer, bind
+        WebGLBuffer indexBuffer = buffers.getIndexBuffer();
+        if (indexBuffer != null)
+            _gl.bindBuffer(_gl.ELEMENT_ARRAY_BUFFER, indexBuffer);
+    }
 
-            // Draw elements
-            _gl.drawElements(_gl.TRIANGLES, indexArray.length, _gl.UNSIGNED_SHORT, 0);
+    /**
+     * Binds the vertex array object for given buffers, creating it on first use (WebGL2).
+     */
+    private void bindVertexArrayObject(RenderItem anItem, CJBufferCache.VertexBuffers buffers, CJRenderContext.ProgramLocations locs)
+    {
+        // If VAO exists, just bind if not already bound and return
+        WebGLVertexArrayObject vao = buffers.getVAO();
+        if (vao != null) {
+            if (_bufferCache.bindVertexArray(vao))
+                _stateChangeCount++;
+            return;
         }
 
-        // Run program
-        else {
-            int vertexCount = pointArray.length / 3;
-            _gl.drawArrays(_gl.TRIANGLES, 0, vertexCount);
-        }
+        // Create and bind VAO
+        vao = _gl2.createVertexArray();
+        _bufferCache.bindVertexArray(vao);
+        buffers.setVAO(vao);
+        _stateChangeCount++;
 
-        // Delete buffers
-        _gl.deleteBuffer(pointBuffer);
-        _gl.disableVertexAttribArray(pointsAttrLoc);
-        if (colorBuffer != null) {
-            _gl.deleteBuffer(colorBuffer);
-            _gl.disableVertexAttribArray(colorAttrLoc);
+        // Bind pointBuffer, configure and enable vertPoint attribute
+        _gl.bindBuffer(_gl.ARRAY_BUFFER, buffers.getPointBuffer());
+        _gl.vertexAttribPointer(locs._vertPoint, 3, _gl.FLOAT, false, 3 * 4, 0);
+        _gl.enableVertexAttribArray(locs._vertPoint);
+
+        // If color array present, bind colorBuffer, configure and enable vertColor attribute
+        WebGLBuffer colorBuffer = buffers.getColorBuffer();
+        if (colorBuffer != null && locs._vertColorAttr >= 0) {
+            _gl.bindBuffer(_gl.ARRAY_BUFFER, colorBuffer);
+            _gl.vertexAttribPointer(locs._vertColorAttr, 3, _gl.FLOAT, false, 3 * 4, 0);
+            _gl.enableVertexAttribArray(locs._vertColorAttr);
         }
-        if (texCoordBuffer != null) {
-            _gl.deleteBuffer(texCoordBuffer);
-            _gl.disableVertexAttribArray(texCoordAttrLoc);
+
+        // If texCoords present, bind texCoordBuffer, configure and enable vertTexCoord attribute (even if texture not yet ready)
+        WebGLBuffer texCoordBuffer = buffers.getTexCoordBuffer();
+        if (texCoordBuffer != null && locs._vertTexCoord >= 0) {
+            _gl.bindBuffer(_gl.ARRAY_BUFFER, texCoordBuffer);
+            _gl.vertexAttribPointer(locs._vertTexCoord, 2, _gl.FLOAT, false, 2 * 4, 0);
+            _gl.enableVertexAttribArray(locs._vertTexCoord);
         }
+
+        // If index buffer, bind (element array binding is part of VAO)
+        WebGLBuffer indexBuffer = buffers.getIndexBuffer();
         if (indexBuffer != null)
-            _gl.deleteBuffer(indexBuffer);
+            _gl.bindBuffer(_gl.ELEMENT_ARRAY_BUFFER, indexBuffer);
+    }
 
-        // Restore
-        if (doubleSided)
+    /**
+     * Enables or disables face culling, if changed.
+     */
+    private void setCullFaceEnabled(boolean aValue)
+    {
+        if (aValue == _cullFaceEnabled) return;
+        if (aValue)
             _gl.enable(_gl.CULL_FACE);
+        else _gl.disable(_gl.CULL_FACE);
+        _cullFaceEnabled = aValue;
+        _stateChangeCount++;
+    }
+
+    /**
+     * Enables or disables vertex attribute array at given location, if changed.
+     */
+    private void setAttribEnabled(int aLoc, boolean aValue)
+    {
+        if (aValue == _attribEnabled[aLoc]) return;
+        if (aValue)
+            _gl.enableVertexAttribArray(aLoc);
+        else _gl.disableVertexAttribArray(aLoc);
+        _attribEnabled[aLoc] = aValue;
+        _stateChangeCount++;
     }
 
     /**
@@ -317,113 +889,45 @@ public class CJRenderer extends Renderer {
      */
     public WebGLProgram getProgram(VertexArray aVertexArray)
     {
-        // If shader exists, return
         String name = getShaderString(aVertexArray);
-        WebGLProgram program = _programs.get(name);
-        if (program != null)
-            return program;
-
-        // Create, set and return
-        program = _gl.createProgram();
-        WebGLShader vertexShader = getVertexShader(name);
-        WebGLShader fragmentShader = getFragmentShader(name);
-        _gl.attachShader(program, vertexShader);
-        _gl.attachShader(program, fragmentShader);
-
-        // Link Program
-        _gl.linkProgram(program);
-
-        // Validate
-        _gl.validateProgram(program);
-        //JSObject linkStatus = _gl.getProgramParameter(program, _gl.LINK_STATUS);
-        //if ( ! linkStatus) {
-        //    var info = gl.getProgramInfoLog(program);
-        //    throw 'Could not compile WebGL program. \n\n' + info;
-        //}
-
-        _programs.put(name, program);
-        return program;
+        return getProgram(name);
     }
 
     /**
-     * Returns a VertexShader for given VertexArray.
+     * Returns a ShaderProgram for given name.
      */
-    public WebGLShader getVertexShader(String name)
-    {
-        // If shader exists, return
-        WebGLShader shader = _vertShaders.get(name);
-        if (shader != null)
-            return shader;
+    public WebGLProgram getProgram(String name)  { return _context.getProgram(name); }
 
-        // Get shader source
-        String sourceText = getSourceText(_gl.VERTEX_SHADER, name);
-
-        // Create WebGLShader and set source
-        shader = _gl.createShader(_gl.VERTEX_SHADER);
-        _gl.shaderSource(shader, sourceText);
+    /**
+     * Compiles and links all shader programs (called at init so first frames don't hitch).
+     */
+    public void preloadPrograms()  { _context.preloadPrograms(); }
 
-        // Compile
-        _gl.compileShader(shader);
+    /**
+     * Returns the compile/link time in milliseconds for shader program with given name (or -1 if not yet built).
+     */
+    public double getProgramBuildTime(String aName)  { return _context.getProgramBuildTime(aName); }
 
-        // Add to VertShaders map and return
-        _vertShaders.put(name, shader);
-        return shader;
-    }
+    /**
+     * Returns a VertexShader for given VertexArray.
+     */
+    public WebGLShader getVertexShader(String name)  { return _context.getVertexShader(name); }
 
     /**
      * Returns a Fragment Shader for given VertexArray.
      */
-    public WebGLShader getFragmentShader(String name)
-    {
-        // If shader exists, return
-        WebGLShader shader = _fragShaders.get(name);
-        if (shader != null)
-            return shader;
-
-        // Get shader source
-        String sourceText = getSourceText(_gl.FRAGMENT_SHADER, name);
-
-        // Create WebGLShader and set source
-        shader = _gl.createShader(_gl.FRAGMENT_SHADER);
-        _gl.shaderSource(shader, sourceText);
-
-        // Compile
-        _gl.compileShader(shader);
-
-        // Add to VertShaders map and return
-        _fragShaders.put(name, shader);
-        return shader;
-    }
+    public WebGLShader getFragmentShader(String name)  { return _context.getFragmentShader(name); }
 
     /**
      * Returns a WebGL texture for given Snap texture.
      */
     public WebGLTexture getTexture(Texture aTexture)
     {
-        // Get from Textures map (Just return if found)
-        WebGLTexture wglTexture = _textures.get(aTexture);
-        if (wglTexture != null)
-            return wglTexture;
-
-        // Get BufferedImage and flip for OpenGL
-        CJImage image = (CJImage) aTexture.getImage();
-        HTMLCanvasElement canvas = image.getCanvas();
-        _gl.pixelStorei(_gl.UNPACK_FLIP_Y_WEBGL, 1); //ImageUtil.flipImageVertically(canvas);
-
-        // Create texture for canvas
-        wglTexture = _gl.createTexture();
-        _gl.bindTexture(_gl.TEXTURE_2D, wglTexture);
-        _gl.texParameteri(_gl.TEXTURE_2D, _gl.TEXTURE_WRAP_S, _gl.CLAMP_TO_EDGE);
-        _gl.texParameteri(_gl.TEXTURE_2D, _gl.TEXTURE_WRAP_T, _gl.CLAMP_TO_EDGE);
-        _gl.texParameteri(_gl.TEXTURE_2D, _gl.TEXTURE_MIN_FILTER, _gl.LINEAR);
-        _gl.texParameteri(_gl.TEXTURE_2D, _gl.TEXTURE_MAG_FILTER, _gl.LINEAR);
-        _gl.texImage2D(_gl.TEXTURE_2D, 0, _gl.RGBA, _gl.RGBA, _gl.UNSIGNED_BYTE, canvas);
-
-        // Unbind
-        _gl.bindTexture(_gl.TEXTURE_2D, null);
-
-        // Add to textures map and return
-        _textures.put(aTexture, wglTexture);
+        // Get from texture cache (if uploaded, texture binding was reset)
+        int uploadCount = _textureCache.getUploadCount();
+        WebGLTexture wglTexture = _textureCache.getTexture(aTexture);
+        if (_textureCache.getUploadCount() != uploadCount)
+            _boundTexture = null;
         return wglTexture;
     }
 
@@ -445,38 +949,117 @@ public class CJRenderer extends Renderer {
     /**
      * Returns the full text string of shader file.
      */
-    public String getSourceText(int aType, String aName)
-    {
-        String sourcePath = "shaders/" + getSourceName(aType, aName);
-        String sourceText = SnapUtils.getText(getClass(), sourcePath);
-        if (sourceText == null || sourceText.length() == 0)
-            System.err.println("CJRenderer.getSourceText: shader source not found: " + sourcePath);
-        return sourceText;
-    }
+    public String getSourceText(int aType, String aName)  { return _context.getSourceText(aType, aName); }
 
     /**
      * Returns the shader file name.
      */
-    public String getSourceName(int aType, String aName)
-    {
-        // Handle Vertex Shaders:
-        if (aType == _gl.VERTEX_SHADER) {
-            switch (aName) {
-                case "Points_Color": return "Points_Color.vs";
-                case "Points_Colors": return "Points_Colors.vs";
-                case "Points_Color_Tex": return "Points_Color_Tex.vs";
-            }
+    public String getSourceName(int aType, String aName)  { return _context.getSourceName(aType, aName); }
+
+    /**
+     * A class to hold a VertexArray in render queue with the state needed to render it.
+     */
+    protected class RenderItem implements Comparable<RenderItem> {
+
+        // The VertexArray
+        protected VertexArray _vertexArray;
+
+        // The shader key
+        protected String _shaderKey;
+
+        // Whether VertexArray is double-sided
+        protected boolean _doubleSided;
+
+        // The texture (if set and ready)
+        protected Texture _texture;
+
+        // The color (used if no color array)
+        protected Color _color;
+
+        // The submission index in render queue
+        protected int _index;
+
+        /**
+         * Constructor for given VertexArray and submission index.
+         */
+        protected RenderItem(VertexArray aVertexArray, int anIndex)
+        {
+            _vertexArray = aVertexArray;
+            _index = anIndex;
+            _shaderKey = getShaderString(aVertexArray);
+            _doubleSided = aVertexArray.isDoubleSided();
+            _texture = aVertexArray.isTextureSetAndReady() ? aVertexArray.getTexture() : null;
+            _color = aVertexArray.getColor(); if (_color == null) _color = Color.RED;
         }
 
-        // Handle Fragment Shaders
-        if (aType == _gl.FRAGMENT_SHADER) {
-            if (aName.equals("Points_Color_Tex"))
-                return "Points_Color_Tex.fs";
-            return "General.fs";
+        /**
+         * Returns whether item can be merged with others (not indexed or textured).
+         */
+        protected boolean isMergeable()
+        {
+            return !_vertexArray.isIndexArraySet() && _texture == null && !_shaderKey.equals("Points_Color_Tex");
         }
 
-        // Something went wrong
-        return null;
+        /**
+         * Returns the key of merge group for item (shader, double-sided and color if no color array).
+         */
+        protected String getMergeKey()
+        {
+            String key = _shaderKey + (_doubleSided ? ":DoubleSided" : ":SingleSided");
+            return _vertexArray.isColorArraySet() ? key : key + ':' + getColorInt(_color);
+        }
+
+        /**
+         * Returns whether given item can be merged into same draw as this item.
+         */
+        protected boolean canMergeWith(RenderItem anItem)
+        {
+            if (!anItem.isMergeable() || !anItem._shaderKey.equals(_shaderKey) || anItem._doubleSided != _doubleSided)
+                return false;
+            return _vertexArray.isColorArraySet() || anItem._color.equals(_color);
+        }
+
+        /**
+         * Returns whether item is opaque (untextured with opaque color), so it can be drawn out of submission order.
+         */
+        protected boolean isOpaque()
+        {
+            return _texture == null && (_vertexArray.isColorArraySet() || _color.getAlphaInt() == 255);
+        }
+
+        /**
+         * Compares opaque items by shader key, double-sided and color, then submission index. Translucent
+         * items follow opaque items in submission order.
+         */
+        @Override
+        public int compareTo(RenderItem anItem)
+        {
+            // If either item is translucent, put opaque first, otherwise keep submission order
+            boolean isOpaque = isOpaque();
+            if (isOpaque != anItem.isOpaque())
+                return isOpaque ? -1 : 1;
+            if (!isOpaque)
+                return Integer.compare(_index, anItem._index);
+
+            // Compare state
+            int comp = _shaderKey.compareTo(anItem._shaderKey);
+            if (comp != 0) return comp;
+            if (_doubleSided != anItem._doubleSided)
+                return _doubleSided ? 1 : -1;
+            comp = Integer.compare(getColorInt(_color), getColorInt(anItem._color));
+            if (comp != 0) return comp;
+
+            // Fall back to submission order
+            return Integer.compare(_index, anItem._index);
+        }
+    }
+
+    /**
+     * Returns an ARGB int for given color.
+     */
+    private static int getColorInt(Color aColor)
+    {
+        return aColor.getAlphaInt() << 24 | aColor.getRedInt() << 16 | aColor.getGreenInt() << 8 | aColor.getBlueInt();
     }
 
     /**
@@ -500,6 +1083,32 @@ public class CJRenderer extends Renderer {
      */
     public static class CJRendererFactory extends RendererFactory {
 
+        // Whether new renderers use WebGL2 if available
+        private boolean  _webGL2Enabled = true;
+
+        // Whether new renderers use the shared render context
+        private boolean  _sharedContextEnabled;
+
+        /**
+         * Returns whether new renderers use WebGL2 if available.
+         */
+        public boolean isWebGL2Enabled()  { return _webGL2Enabled; }
+
+        /**
+         * Sets whether new renderers use WebGL2 if available.
+         */
+        public void setWebGL2Enabled(boolean aValue)  { _webGL2Enabled = aValue; }
+
+        /**
+         * Returns whether new renderers use the shared render context.
+         */
+        public boolean isSharedContextEnabled()  { return _sharedContextEnabled; }
+
+        /**
+         * Sets whether new renderers use the shared render context.
+         */
+        public void setSharedContextEnabled(boolean aValue)  { _sharedContextEnabled = aValue; }
+
         /**
          * Returns the renderer name.
          */
@@ -510,7 +1119,10 @@ public class CJRenderer extends Renderer {
          */
         public Renderer newRenderer(Camera aCamera)
         {
-            return new CJRenderer(aCamera);
+            CJRenderer renderer = new CJRenderer(aCamera);
+            renderer.setWebGL2Enabled(_webGL2Enabled);
+            renderer.setSharedContextEnabled(_sharedContextEnabled);
+            return renderer;
         }
     }
 }
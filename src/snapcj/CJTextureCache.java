@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import snap.gfx3d.Texture;
+import webapi.*;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * This class manages WebGLTextures for Snap Textures. Textures are weakly keyed (and deleted once the Snap texture
+ * is collected) and evicted least-recently-used when resident bytes exceed the byte budget.
+ */
+public class CJTextureCache {
+
+    // The WebGLRenderingContext
+    private WebGLRenderingContext _gl;
+
+    // A map of Texture to texture entries
+    private Map<Texture, TextureEntry> _textures = new WeakHashMap<>();
+
+    // The list of texture entries (to delete WebGLTextures for collected or evicted textures)
+    private List<TextureEntry> _entries = new ArrayList<>();
+
+    // Whether to generate mipmaps for power-of-two images
+    private boolean _mipmapsEnabled = true;
+
+    // The max number of bytes to keep resident
+    private long _maxBytes = DEFAULT_MAX_BYTES;
+
+    // The number of bytes currently resident
+    private long _residentBytes;
+
+    // The number of texture uploads
+    private int _uploadCount;
+
+    // The use counter (for LRU)
+    private long _useCount;
+
+    // The default max bytes (128 MB)
+    public static final long DEFAULT_MAX_BYTES = 128 * 1024 * 1024;
+
+    /**
+     * Constructor.
+     */
+    public CJTextureCache(WebGLRenderingContext aGL)
+    {
+        _gl = aGL;
+    }
+
+    /**
+     * Returns whether to generate mipmaps for power-of-two images.
+     */
+    public boolean isMipmapsEnabled()  { return _mipmapsEnabled; }
+
+    /**
+     * Sets whether to generate mipmaps for power-of-two images (applies to subsequent uploads).
+     */
+    public void setMipmapsEnabled(boolean aValue)  { _mipmapsEnabled = aValue; }
+
+    /**
+     * Returns the max number of bytes to keep resident.
+     */
+    public long getMaxBytes()  { return _maxBytes; }
+
+    /**
+     * Sets the max number of bytes to keep resident.
+     */
+    public void setMaxBytes(long aValue)
+    {
+        _maxBytes = aValue;
+        evictToBudget(null);
+    }
+
+    /**
+     * Returns the number of bytes currently resident.
+     */
+    public long getResidentBytes()  { return _residentBytes; }
+
+    /**
+     * Returns the number of textures currently resident.
+     */
+    public int getResidentCount()  { return _entries.size(); }
+
+    /**
+     * Returns the number of texture uploads.
+     */
+    public int getUploadCount()  { return _uploadCount; }
+
+    /**
+     * Returns a WebGL texture for given Snap texture, uploading if missing.
+     */
+    public WebGLTexture getTexture(Texture aTexture)
+    {
+        // Get from Textures map (Just return if found)
+        TextureEntry entry = _textures.get(aTexture);
+        if (entry != null) {
+            entry._lastUse = ++_useCount;
+            return entry._wglTexture;
+        }
+
+        // Delete textures for collected Snap textures
+        purgeCollected();
+
+        // Create entry and upload
+        entry = new TextureEntry(aTexture);
+        entry._lastUse = ++_useCount;
+        _textures.put(aTexture, entry);
+        _entries.add(entry);
+        _residentBytes += entry._byteCount;
+        _uploadCount++;
+
+        // Evict others if over budget and return
+        evictToBudget(entry);
+        return entry._wglTexture;
+    }
+
+    /**
+     * Deletes WebGLTextures for Snap textures that have been garbage collected.
+     */
+    private void purgeCollected()
+    {
+        for (int i = _entries.size() - 1; i >= 0; i--) {
+            TextureEntry entry = _entries.get(i);
+            if (entry._textureRef.get() == null)
+                removeEntry(entry);
+        }
+    }
+
+    /**
+     * Removes least recently used textures until resident bytes are within budget.
+     */
+    private void evictToBudget(TextureEntry anEntryToKeep)
+    {
+        while (_residentBytes > _maxBytes && _entries.size() > 1) {
+
+            // Get least recently used entry
+            TextureEntry lruEntry = null;
+            for (TextureEntry entry : _entries)
+                if (entry != anEntryToKeep && (lruEntry == null || entry._lastUse < lruEntry._lastUse))
+                    lruEntry = entry;
+
+            // Remove
+            if (lruEntry == null) break;
+            removeEntry(lruEntry);
+        }
+    }
+
+    /**
+     * Removes given entry and deletes WebGLTexture.
+     */
+    private void removeEntry(TextureEntry anEntry)
+    {
+        Texture texture = anEntry._textureRef.get();
+        if (texture != null)
+            _textures.remove(texture);
+        _entries.remove(anEntry);
+        _residentBytes -= anEntry._byteCount;
+        _gl.deleteTexture(anEntry._wglTexture);
+    }
+
+    /**
+     * Deletes all textures.
+     */
+    public void clear()
+    {
+        for (TextureEntry entry : _entries)
+            _gl.deleteTexture(entry._wglTexture);
+        _entries.clear();
+        _textures.clear();
+        _residentBytes = 0;
+    }
+
+    /**
+     * A class to hold a WebGLTexture for a Snap texture.
+     */
+    private class TextureEntry {
+
+        // The Snap texture
+        private WeakReference<Texture> _textureRef;
+
+        // The WebGLTexture
+        private WebGLTexture _wglTexture;
+
+        // The number of bytes uploaded
+        private long _byteCount;
+
+        // The use counter value of last use
+        private long _lastUse;
+
+        /**
+         * Constructor: Creates WebGLTexture and uploads image for given Snap texture.
+         */
+        private TextureEntry(Texture aTexture)
+        {
+            _textureRef = new WeakReference<>(aTexture);
+
+            // Get canvas for image and flip for OpenGL
+            CJImage image = (CJImage) aTexture.getImage();
+            HTMLCanvasElement canvas = image.getCanvas();
+            _gl.pixelStorei(_gl.UNPACK_FLIP_Y_WEBGL, 1); //ImageUtil.flipImageVertically(canvas);
+
+            // Get whether to use mipmaps (WebGL 1 only supports for power-of-two sizes)
+            int pixW = canvas.getWidth();
+            int pixH = canvas.getHeight();
+            boolean useMipmaps = _mipmapsEnabled && isPowerOfTwo(pixW) && isPowerOfTwo(pixH);
+
+            // Create texture for canvas
+            _wglTexture = _gl.createTexture();
+            _gl.bindTexture(_gl.TEXTURE_2D, _wglTexture);
+            _gl.texParameteri(_gl.TEXTURE_2D, _gl.TEXTURE_WRAP_S, _gl.CLAMP_TO_EDGE);
+            _gl.texParameteri(_gl.TEXTURE_2D, _gl.TEXTURE_WRAP_T, _gl.CLAMP_TO_EDGE);
+            _gl.texParameteri(_gl.TEXTURE_2D, _gl.TEXTURE_MIN_FILTER, useMipmaps ? _gl.LINEAR_MIPMAP_LINEAR : _gl.LINEAR);
+            _gl.texParameteri(_gl.TEXTURE_2D, _gl.TEXTURE_MAG_FILTER, _gl.LINEAR);
+            _gl.texImage2D(_gl.TEXTURE_2D, 0, _gl.RGBA, _gl.RGBA, _gl.UNSIGNED_BYTE, canvas);
+
+            // If mipmaps, generate (adds a third to texture size)
+            _byteCount = pixW * pixH * 4L;
+            if (useMipmaps) {
+                _gl.generateMipmap(_gl.TEXTURE_2D);
+                _byteCount = _byteCount * 4 / 3;
+            }
+
+            // Unbind
+            _gl.bindTexture(_gl.TEXTURE_2D, null);
+        }
+    }
+
+    /**
+     * Returns whether given value is a power of two.
+     */
+    private static boolean isPowerOfTwo(int aValue)
+    {
+        return aValue > 0 && (aValue & (aValue - 1)) == 0;
+    }
+}
@@ -8,6 +8,10 @@ import snap.props.PropChange;
 import snap.props.PropChangeListener;
 import snap.view.*;
 import webapi.EventListener;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A class to represent the WindowView in the browser page.
@@ -38,6 +42,15 @@ public class CJWindow {
     // The body overflow value
     private String _bodyOverflow;
 
+    // The overlay elements shown over canvas (such as WebGL canvases) mapped to bounds
+    private Map<HTMLElement,Rect> _overlays = new HashMap<>();
+
+    // The overlay elements shown during current paint
+    private Set<HTMLElement> _overlaysPainted = new HashSet<>();
+
+    // The retained layers for views marked cacheable
+    private CJLayerCache _layerCache = new CJLayerCache(this);
+
     // The last top window
     protected static int _topWin;
 
@@ -83,7 +96,9 @@ public class CJWindow {
         //_canvas.addEventListener("wheel", e -> e.preventDefault());
 
         // Create painter
-        _painter = new CJPainter2(_canvas, PIXEL_SCALE);
+        CJPainter2 painter = new CJPainter2(_canvas, PIXEL_SCALE);
+        painter.getPainter()._window = this;
+        _painter = painter;
 
         // Register for drop events
         _canvas.setAttribute("draggable", "true");
@@ -286,6 +301,9 @@ public class CJWindow {
         Window.get().removeEventListener("resize", _resizeLsnr);
         _resizeLsnr = null;
 
+        // Release layer images
+        _layerCache.releaseImages();
+
         // Send WinClose event
         sendWinEvent(ViewEvent.Type.WinClose);
     }
@@ -305,8 +323,84 @@ public class CJWindow {
     {
         _painter.setTransform(1,0,0,1,0,0); // I don't know why I need this!
         ViewUpdater updater = _rootView.getUpdater();
-        updater.paintViews(_painter, aRect);
-        _painter.flush();
+        _overlaysPainted.clear();
+
+        // Set paint rect (so painter can skip unchanged replays and drops hashes of rects this paint changes)
+        ((CJPainter2) _painter).setPaintRect(aRect);
+
+        // If retained layers, have layer cache paint (blits layers and paints views in the parts of rect around them)
+        if (_layerCache.hasLayers())
+            _layerCache.paintViews(_painter, aRect, rect -> updater.paintViews(_painter, rect));
+
+        // Otherwise paint views and flush
+        else {
+            updater.paintViews(_painter, aRect);
+            _painter.flush();
+        }
+
+        // Hide overlays in paint rect that weren't shown in this paint (their views are gone or hidden)
+        if (_overlays.size() > _overlaysPainted.size()) {
+            for (HTMLElement overlay : _overlays.keySet().toArray(new HTMLElement[0])) {
+                if (!_overlaysPainted.contains(overlay) && _overlays.get(overlay).intersectsRect(aRect))
+                    hideOverlay(overlay);
+            }
+        }
+    }
+
+    /**
+     * Returns whether given view is cached in a retained layer.
+     */
+    public boolean isViewCached(View aView)  { return _layerCache.isViewCached(aView); }
+
+    /**
+     * Sets whether given view is cached in a retained layer: The view is painted once, then blitted from an offscreen
+     * canvas until its content changes. View should be opaque and not overlapped by other views.
+     */
+    public void setViewCached(View aView, boolean aValue)
+    {
+        _layerCache.setViewCached(aView, aValue);
+    }
+
+    /**
+     * Returns the retained layer cache.
+     */
+    public CJLayerCache getLayerCache()  { return _layerCache; }
+
+    /**
+     * Shows given element (such as a WebGL canvas) as a layer over window canvas at given bounds in window coords.
+     * The element hides anything painted on window canvas in those bounds.
+     */
+    public void showOverlay(HTMLElement anElement, Rect aRect)
+    {
+        // If not yet showing, add to WindowDiv (above canvas) and configure
+        if (!_overlays.containsKey(anElement)) {
+            anElement.getStyle().setProperty("position", "absolute");
+            anElement.getStyle().setProperty("pointer-events", "none");
+            _windowDiv.appendChild(anElement);
+        }
+
+        // If bounds changed, set location relative to canvas
+        Rect oldRect = _overlays.get(anElement);
+        if (oldRect == null || oldRect.x != aRect.x || oldRect.y != aRect.y) {
+            int left = _canvas.getOffsetLeft() + (int) aRect.x;
+            int top = _canvas.getOffsetTop() + (int) aRect.y;
+            anElement.getStyle().setProperty("left", left + "px");
+            anElement.getStyle().setProperty("top", top + "px");
+        }
+
+        // Add to overlays
+        _overlays.put(anElement, aRect);
+        _overlaysPainted.add(anElement);
+    }
+
+    /**
+     * Hides given overlay element.
+     */
+    public void hideOverlay(HTMLElement anElement)
+    {
+        if (_overlays.remove(anElement) == null) return;
+        _overlaysPainted.remove(anElement);
+        _windowDiv.removeChild(anElement);
     }
 
     /**
@@ -342,6 +436,13 @@ public class CJWindow {
         int rootH = (int) Math.ceil(_rootView.getHeight());
         _canvas.setWidth(rootW * PIXEL_SCALE);
         _canvas.setHeight(rootH * PIXEL_SCALE);
+
+        // Resizing canvas clears it and resets context state, so reset painted rect hashes and context shadow state
+        if (_painter != null) {
+            CJPainter2 painter = (CJPainter2) _painter;
+            painter.clearPaintRectHashes();
+            painter.getPainter().invalidateCntxState();
+        }
     }
 
     /**
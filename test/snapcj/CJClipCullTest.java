@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import snap.gfx.Stroke;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the CJPainter clip culling math (device bounds, clip bounds test and stroke outset).
+ */
+public class CJClipCullTest {
+
+    // The clip bounds used for tests (minX, minY, maxX, maxY)
+    private static final double[] CLIP = { 0, 0, 100, 100 };
+
+    // An identity matrix (a, b, c, d, tx, ty)
+    private static final double[] IDENTITY = { 1, 0, 0, 1, 0, 0 };
+
+    /**
+     * Returns whether given rect with given matrix and outset is culled for test clip.
+     */
+    private static boolean isClippedOut(double aX, double aY, double aW, double aH, double anOutset, double[] aMatrix)
+    {
+        double[] bounds = CJPainter.getDeviceBounds(aX, aY, aW, aH, anOutset, aMatrix, new double[4]);
+        return CJPainter.isOutsideBounds(bounds, CLIP);
+    }
+
+    /**
+     * Tests rects inside, intersecting and outside clip.
+     */
+    @Test
+    public void testIdentity()
+    {
+        assertFalse(isClippedOut(10, 10, 20, 20, 0, IDENTITY));
+        assertFalse(isClippedOut(-10, -10, 20, 20, 0, IDENTITY));
+        assertTrue(isClippedOut(110, 10, 20, 20, 0, IDENTITY));
+        assertTrue(isClippedOut(10, -40, 20, 20, 0, IDENTITY));
+    }
+
+    /**
+     * Tests the pixel of slack for antialiasing at clip edges.
+     */
+    @Test
+    public void testSlack()
+    {
+        // Rect ending just within a pixel of clip is kept, rect ending more than a pixel away is culled
+        assertFalse(isClippedOut(-20, 10, 19.5, 10, 0, IDENTITY));
+        assertTrue(isClippedOut(-20, 10, 18.5, 10, 0, IDENTITY));
+        assertFalse(isClippedOut(100.5, 10, 10, 10, 0, IDENTITY));
+        assertTrue(isClippedOut(101.5, 10, 10, 10, 0, IDENTITY));
+    }
+
+    /**
+     * Tests that outset (stroke) keeps rects whose stroke reaches into clip.
+     */
+    @Test
+    public void testOutset()
+    {
+        assertTrue(isClippedOut(104, 10, 10, 10, 0, IDENTITY));
+        assertFalse(isClippedOut(104, 10, 10, 10, 4, IDENTITY));
+    }
+
+    /**
+     * Tests scaled, translated and rotated matrices.
+     */
+    @Test
+    public void testTransform()
+    {
+        // Scale 2 (hidpi): Rect at 60 is at 120 in pixels
+        double[] scale2 = { 2, 0, 0, 2, 0, 0 };
+        assertFalse(isClippedOut(40, 10, 10, 10, 0, scale2));
+        assertTrue(isClippedOut(60, 10, 10, 10, 0, scale2));
+
+        // Translate -200: Rect at 210 is at 10
+        double[] translate = { 1, 0, 0, 1, -200, 0 };
+        assertFalse(isClippedOut(210, 10, 10, 10, 0, translate));
+        assertTrue(isClippedOut(10, 10, 10, 10, 0, translate));
+
+        // Rotate 90 degrees (x' = -y, y' = x): Rect at positive y goes to negative x
+        double[] rotate = { 0, 1, -1, 0, 0, 0 };
+        assertTrue(isClippedOut(10, 10, 10, 10, 0, rotate));
+        assertFalse(isClippedOut(10, -30, 10, 10, 0, rotate));
+
+        // Device bounds of rotated rect
+        double[] bounds = CJPainter.getDeviceBounds(10, -30, 10, 20, 0, rotate, new double[4]);
+        assertArrayEquals(new double[] { 10, 10, 30, 20 }, bounds, 1e-9);
+    }
+
+    /**
+     * Tests that stroke outset covers square caps and joins (half width times sqrt 2) and miter limit.
+     */
+    @Test
+    public void testStrokeOutset()
+    {
+        assertEquals(Math.sqrt(2) / 2, CJPainter.getStrokeOutset(null), 1e-9);
+
+        Stroke stroke = new Stroke(4);
+        double outset = CJPainter.getStrokeOutset(stroke);
+        assertTrue(outset >= 2 * Math.sqrt(2) - 1e-9);
+        if (stroke.getJoin() == Stroke.Join.Miter)
+            assertTrue(outset >= 2 * stroke.getMiterLimit() - 1e-9);
+    }
+}
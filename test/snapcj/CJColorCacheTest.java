@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import snap.gfx.Color;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the CSS color string cache in CJ.getColorJS().
+ */
+public class CJColorCacheTest {
+
+    /**
+     * Tests color string format for opaque and translucent colors.
+     */
+    @Test
+    public void testColorStrings()
+    {
+        assertEquals("rgb(255,0,0)", CJ.getColorJS(new Color(255, 0, 0, 255)));
+        assertEquals("rgb(1,2,3)", CJ.getColorJS(new Color(1, 2, 3, 255)));
+        assertEquals("rgba(0,0,255,0.2)", CJ.getColorJS(new Color(0, 0, 255, 51)));
+        assertNull(CJ.getColorJS(null));
+    }
+
+    /**
+     * Tests that repeat lookups return the same cached string and count as hits.
+     */
+    @Test
+    public void testCacheHit()
+    {
+        Color color = new Color(12, 34, 56, 255);
+        String colorStr = CJ.getColorJS(color);
+        CJ.resetColorCacheCounts();
+        assertSame(colorStr, CJ.getColorJS(new Color(12, 34, 56, 255)));
+        assertEquals(1, CJ.getColorCacheHitCount());
+        assertEquals(0, CJ.getColorCacheMissCount());
+    }
+
+    /**
+     * Tests that colliding colors replace each other without returning the wrong string.
+     */
+    @Test
+    public void testCollisions()
+    {
+        // Look up many more colors than cache slots, twice
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < 8192; i++) {
+                int r = i & 0xFF, g = i >> 8 & 0xFF, b = i * 7 & 0xFF;
+                String expected = "rgb(" + r + ',' + g + ',' + b + ')';
+                assertEquals(expected, CJ.getColorJS(new Color(r, g, b, 255)));
+            }
+        }
+
+        // Colors that differ only by alpha must not share an entry
+        assertEquals("rgb(10,20,30)", CJ.getColorJS(new Color(10, 20, 30, 255)));
+        assertEquals("rgba(10,20,30,0.0)", CJ.getColorJS(new Color(10, 20, 30, 0)));
+        assertEquals("rgb(10,20,30)", CJ.getColorJS(new Color(10, 20, 30, 255)));
+    }
+}
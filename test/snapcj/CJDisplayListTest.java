@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import snap.geom.Path2D;
+import snap.geom.Rect;
+import snap.geom.Transform;
+import snap.gfx.*;
+import snapcj.CJDisplayList.Op;
+import org.junit.jupiter.api.Test;
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the CJDisplayList capture format round trip and the CJDisplayListReplay counts (no browser needed).
+ */
+public class CJDisplayListTest {
+
+    /**
+     * Tests that recorded ops are read back with the same operands.
+     */
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        // Record ops
+        GradientPaint gradient = new GradientPaint(0, 0, 100, 0, new GradientPaint.Stop[] {
+            new GradientPaint.Stop(0, Color.RED), new GradientPaint.Stop(1, Color.BLUE) });
+        Path2D path = new Path2D();
+        path.moveTo(0, 0);
+        path.quadTo(15, 5, 10, 10);
+        path.curveTo(8, 12, 2, 12, 0, 10);
+        path.close();
+        CJDisplayList.Recorder recorder = new CJDisplayList.Recorder();
+        recorder.setPaint(new Color(10, 20, 30, 40));
+        recorder.setPaint(gradient);
+        recorder.setStroke(new Stroke(4));
+        recorder.setTransform(new Transform(2, 0, 0, 2, 10, 20), true);
+        recorder.shape(CJDisplayList.OP_FILL, new Rect(1, 2, 3, 4));
+        recorder.shape(CJDisplayList.OP_DRAW, path);
+        recorder.string(CJDisplayList.OP_DRAW_STRING, "Hello", 5, 6, 1.5);
+        recorder.saveOrRestore(true);
+        recorder.setComposite(Composite.DST_OUT);
+
+        // Write display list and read it back
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outStream = new DataOutputStream(bytes);
+        CJDisplayList.writeHeader(outStream, 2);
+        recorder.writeDisplayList(outStream, new Rect(10, 20, 30, 40));
+        DataInputStream inStream = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(2, CJDisplayList.readHeader(inStream));
+        CJDisplayList displayList = CJDisplayList.readDisplayList(inStream);
+        assertNull(CJDisplayList.readDisplayList(inStream));
+        assertEquals(new Rect(10, 20, 30, 40), displayList.getPaintRect());
+
+        // Check ops
+        List<Op> ops = displayList.getOps();
+        assertEquals(9, ops.size());
+        assertEquals(0x280A141E, ops.get(0).getPaint().getARGB());
+
+        CJDisplayList.PaintDesc gradientDesc = ops.get(1).getPaint();
+        assertEquals(CJDisplayList.PAINT_GRADIENT, gradientDesc.getType());
+        assertArrayEquals(new double[] { 0, 0, 100, 0 }, gradientDesc.getPoints());
+        assertArrayEquals(new double[] { 0, 1 }, gradientDesc.getStopOffsets());
+        assertArrayEquals(new int[] { 0xFFFF0000, 0xFF0000FF }, gradientDesc.getStopColors());
+        assertEquals(gradient.isAbsolute(), gradientDesc.isAbsolute());
+
+        assertEquals(4, ops.get(2).getStroke().getWidth());
+        assertEquals(CJDisplayList.OP_TRANSFORM, ops.get(3).getCode());
+        assertArrayEquals(new double[] { 2, 0, 0, 2, 10, 20 }, ops.get(3).getValues());
+        assertArrayEquals(new double[] { 1, 2, 3, 4 }, ops.get(4).getShape().getRect());
+
+        CJDisplayList.ShapeDesc pathDesc = ops.get(5).getShape();
+        assertFalse(pathDesc.isRect());
+        String segTypes = new String(pathDesc.getSegTypes());
+        assertTrue(segTypes.startsWith("MQC") && segTypes.endsWith("Z"));
+        assertArrayEquals(new double[] { 0, 0, 15, 5, 10, 10, 8, 12, 2, 12, 0, 10 }, Arrays.copyOf(pathDesc.getCoords(), 12));
+
+        assertEquals("Hello", ops.get(6).getText());
+        assertArrayEquals(new double[] { 5, 6, 1.5 }, ops.get(6).getValues());
+        assertEquals(CJDisplayList.OP_SAVE, ops.get(7).getCode());
+        assertEquals("DST_OUT", ops.get(8).getText());
+    }
+
+    /**
+     * Tests replay of recorded frames: State elision, culling, native save for clip and path cache.
+     */
+    @Test
+    public void testReplay() throws IOException
+    {
+        // Record frame 1: Clip inside save, set paint, fill inside rect, outside rect, same paint again and inside rect
+        CJDisplayList.Recorder recorder = new CJDisplayList.Recorder();
+        recorder.saveOrRestore(true);
+        recorder.shape(CJDisplayList.OP_CLIP, new Rect(0, 0, 100, 100));
+        recorder.setPaint(Color.RED);
+        recorder.shape(CJDisplayList.OP_FILL, new Rect(10, 10, 20, 20));
+        recorder.shape(CJDisplayList.OP_FILL, new Rect(200, 200, 10, 10));
+        recorder.setPaint(Color.RED);
+        recorder.shape(CJDisplayList.OP_FILL, new Rect(50, 50, 10, 10));
+        recorder.saveOrRestore(false);
+        CJDisplayList frame1 = new CJDisplayList(null, recorder.getOpBytes());
+        recorder.writeDisplayList(new DataOutputStream(new ByteArrayOutputStream()), null);
+
+        // Record frame 2: Fill same path twice
+        Path2D path = new Path2D();
+        path.moveTo(0, 0);
+        path.lineTo(10, 0);
+        path.lineTo(10, 10);
+        path.close();
+        recorder.shape(CJDisplayList.OP_FILL, path);
+        recorder.shape(CJDisplayList.OP_FILL, path);
+        CJDisplayList frame2 = new CJDisplayList(null, recorder.getOpBytes());
+
+        // Replay frames
+        CJDisplayListReplay replay = new CJDisplayListReplay(1);
+        replay.replayDisplayList(frame1);
+        replay.replayDisplayList(frame2);
+        CJDisplayListReplay.RecordingContext cntx = replay.getContext();
+
+        // Check frame and op counts
+        assertEquals(2, replay.getFrameCount());
+        assertEquals(10, replay.getOpCount());
+        assertEquals(2, (int) replay.getOpCounts().get("SetPaint"));
+
+        // Check culling, state elision and native save for clip
+        assertEquals(1, replay.getCulledCount());
+        assertEquals(2, cntx.getCallCount("fillRect"));
+        assertEquals(1, cntx.getCallCount("setFillStyle"));
+        assertEquals(1, cntx.getCallCount("setStrokeStyle"));
+        assertEquals(1, cntx.getCallCount("setTransform"));
+        assertEquals(3, replay.getStateSetCount());
+        assertEquals(2, replay.getStateElidedCount());
+        assertEquals(1, replay.getNativeSaveCount());
+        assertEquals(1, cntx.getCallCount("save"));
+        assertEquals(1, cntx.getCallCount("restore"));
+
+        // Check path is created once and filled twice
+        assertEquals(1, cntx.getCallCount("newPath2D"));
+        assertEquals(2, cntx.getCallCount("fill"));
+
+        // Check bridge call estimates: Direct is every context call, stack is a paintStacks call per frame
+        assertEquals(13, replay.getDirectBridgeCallCount());
+        assertEquals(2, replay.getStackBridgeCallCount());
+    }
+}
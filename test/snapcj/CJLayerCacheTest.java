@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import snap.geom.Rect;
+import org.junit.jupiter.api.Test;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the CJLayerCache split of a dirty rect into the parts outside blitted layers.
+ */
+public class CJLayerCacheTest {
+
+    /**
+     * Tests a hole inside rect gives four parts whose area is rect area minus hole area.
+     */
+    @Test
+    public void testHoleInside()
+    {
+        List<Rect> rects = CJLayerCache.getRectsExcluding(new Rect(0, 0, 100, 100), Collections.singletonList(new Rect(20, 30, 40, 50)));
+        assertEquals(4, rects.size());
+        assertEquals(100 * 100 - 40 * 50, getArea(rects));
+        for (Rect rect : rects)
+            assertFalse(isOverlapping(rect, new Rect(20, 30, 40, 50)));
+    }
+
+    /**
+     * Tests holes outside, covering and overlapping an edge of rect.
+     */
+    @Test
+    public void testHoleEdges()
+    {
+        Rect rect = new Rect(0, 0, 100, 100);
+
+        // Hole outside (or just touching) rect keeps rect
+        assertEquals(Collections.singletonList(rect), CJLayerCache.getRectsExcluding(rect, Collections.singletonList(new Rect(100, 0, 10, 10))));
+
+        // Hole covering rect leaves nothing
+        assertTrue(CJLayerCache.getRectsExcluding(rect, Collections.singletonList(new Rect(-10, -10, 200, 200))).isEmpty());
+
+        // Hole over left edge leaves right part only
+        List<Rect> rects = CJLayerCache.getRectsExcluding(rect, Collections.singletonList(new Rect(-10, -10, 60, 200)));
+        assertEquals(Collections.singletonList(new Rect(50, 0, 50, 100)), rects);
+    }
+
+    /**
+     * Tests that parts for multiple holes don't overlap each other or the holes.
+     */
+    @Test
+    public void testMultipleHoles()
+    {
+        List<Rect> holes = Arrays.asList(new Rect(10, 10, 30, 30), new Rect(30, 30, 40, 40));
+        List<Rect> rects = CJLayerCache.getRectsExcluding(new Rect(0, 0, 100, 100), holes);
+        double holeArea = 30 * 30 + 40 * 40 - 10 * 10;
+        assertEquals(100 * 100 - holeArea, getArea(rects));
+        for (int i = 0; i < rects.size(); i++) {
+            for (Rect hole : holes)
+                assertFalse(isOverlapping(rects.get(i), hole));
+            for (int j = i + 1; j < rects.size(); j++)
+                assertFalse(isOverlapping(rects.get(i), rects.get(j)));
+        }
+    }
+
+    /**
+     * Returns the total area of given rects.
+     */
+    private static double getArea(List<Rect> theRects)
+    {
+        double area = 0;
+        for (Rect rect : theRects)
+            area += rect.width * rect.height;
+        return area;
+    }
+
+    /**
+     * Returns whether given rects share any area (touching edges don't count).
+     */
+    private static boolean isOverlapping(Rect aRect1, Rect aRect2)
+    {
+        return aRect1.x < aRect2.getMaxX() && aRect2.x < aRect1.getMaxX() &&
+            aRect1.y < aRect2.getMaxY() && aRect2.y < aRect1.getMaxY();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import snap.geom.Path2D;
+import snap.geom.Rect;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the CJPathCache path data encoding and shape fingerprint (no Path2D is created, so no browser needed).
+ */
+public class CJPathCacheTest {
+
+    /**
+     * Tests path data for each segment type.
+     */
+    @Test
+    public void testPathData()
+    {
+        Path2D path = new Path2D();
+        path.moveTo(0, 0);
+        path.lineTo(10, 0);
+        path.quadTo(15, 5, 10, 10);
+        path.curveTo(8, 12, 2, 12, 0, 10);
+        path.close();
+
+        CJPathCache pathCache = new CJPathCache();
+        String pathData = pathCache.getPathData(path);
+        assertTrue(pathData.startsWith("M0.0 0.0L10.0 0.0Q15.0 5.0 10.0 10.0C8.0 12.0 2.0 12.0 0.0 10.0"));
+        assertTrue(pathData.endsWith("Z"));
+        assertTrue(pathCache.getLastSegmentCount() >= 5);
+    }
+
+    /**
+     * Tests that equal shapes have same fingerprint and different shapes don't.
+     */
+    @Test
+    public void testFingerprint()
+    {
+        CJPathCache pathCache = new CJPathCache();
+
+        // Get fingerprint of rect
+        pathCache.getPathData(new Rect(10, 20, 30, 40));
+        int segCount = pathCache.getLastSegmentCount();
+        long segHash = pathCache.getLastSegmentHash();
+
+        // Equal rect has same fingerprint
+        pathCache.getPathData(new Rect(10, 20, 30, 40));
+        assertEquals(segCount, pathCache.getLastSegmentCount());
+        assertEquals(segHash, pathCache.getLastSegmentHash());
+
+        // Rects differing by one coord (or by a tiny amount) have different hashes
+        pathCache.getPathData(new Rect(10, 20, 30, 41));
+        assertNotEquals(segHash, pathCache.getLastSegmentHash());
+        pathCache.getPathData(new Rect(10, 20, 30, Math.nextUp(40d)));
+        assertNotEquals(segHash, pathCache.getLastSegmentHash());
+
+        // Swapped coords have different hash
+        pathCache.getPathData(new Rect(20, 10, 40, 30));
+        assertNotEquals(segHash, pathCache.getLastSegmentHash());
+    }
+
+    /**
+     * Tests that a path with added segment has different fingerprint.
+     */
+    @Test
+    public void testFingerprintSegments()
+    {
+        CJPathCache pathCache = new CJPathCache();
+        Path2D path = new Path2D();
+        path.moveTo(0, 0);
+        path.lineTo(10, 0);
+        path.lineTo(10, 10);
+        pathCache.getPathData(path);
+        long segHash = pathCache.getLastSegmentHash();
+        assertEquals(3, pathCache.getLastSegmentCount());
+
+        path.close();
+        pathCache.getPathData(path);
+        assertEquals(4, pathCache.getLastSegmentCount());
+        assertNotEquals(segHash, pathCache.getLastSegmentHash());
+    }
+}
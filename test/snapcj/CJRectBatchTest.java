@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapcj;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the CJPainter rect batch overlap check (batched rects must never share a pixel).
+ */
+public class CJRectBatchTest {
+
+    /**
+     * Tests overlap against an empty batch.
+     */
+    @Test
+    public void testEmptyBatch()
+    {
+        double[] rectBounds = new double[4];
+        double[] batchBounds = new double[4];
+        assertFalse(CJPainter.isBatchOverlap(rectBounds, 0, batchBounds, 0, 0, 10, 10));
+    }
+
+    /**
+     * Tests rects that share an edge but no pixels, rects that share pixels and rects inside batch bounds but in a gap.
+     */
+    @Test
+    public void testOverlap()
+    {
+        // Batch of two rects: [0,0 - 10,10] and [20,0 - 30,10]
+        double[] rectBounds = { 0, 0, 10, 10, 20, 0, 30, 10 };
+        double[] batchBounds = { 0, 0, 30, 10 };
+
+        // Rect touching first rect's right edge doesn't overlap
+        assertFalse(CJPainter.isBatchOverlap(rectBounds, 2, batchBounds, 10, 0, 20, 10));
+
+        // Rect sharing one pixel column with first rect overlaps
+        assertTrue(CJPainter.isBatchOverlap(rectBounds, 2, batchBounds, 9, 0, 12, 10));
+
+        // Rect sharing one pixel column with second rect overlaps
+        assertTrue(CJPainter.isBatchOverlap(rectBounds, 2, batchBounds, 12, 5, 21, 6));
+
+        // Rect inside batch bounds, in gap between rects doesn't overlap
+        assertFalse(CJPainter.isBatchOverlap(rectBounds, 2, batchBounds, 11, 2, 19, 8));
+
+        // Rect touching batch bounds from below doesn't overlap
+        assertFalse(CJPainter.isBatchOverlap(rectBounds, 2, batchBounds, 0, 10, 30, 20));
+
+        // Rect containing whole batch overlaps
+        assertTrue(CJPainter.isBatchOverlap(rectBounds, 2, batchBounds, -5, -5, 40, 40));
+    }
+
+    /**
+     * Tests that only the given number of rects is checked (stale bounds past count are ignored).
+     */
+    @Test
+    public void testRectCount()
+    {
+        double[] rectBounds = { 0, 0, 10, 10, 20, 0, 30, 10 };
+        double[] batchBounds = { 0, 0, 30, 10 };
+        assertFalse(CJPainter.isBatchOverlap(rectBounds, 1, batchBounds, 22, 2, 28, 8));
+        assertTrue(CJPainter.isBatchOverlap(rectBounds, 2, batchBounds, 22, 2, 28, 8));
+    }
+}